@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.util.LinkedList;
+
+/**
+ * Memory-aware admission control
+ *
+ * Processing a document costs several times its size in heap (the
+ * raw bytes, the source tree, the result documents, the serialized
+ * result). Before a document is read, the server reserves an estimate
+ * of that cost from a global budget, based on the size that the client
+ * announced in the length prefix.
+ *
+ * The size of a compressed document is only known once it has been
+ * decompressed, so memory is reserved for the largest document it may
+ * decompress to (see reserveCompressed()), and decompressing fails when
+ * it gets larger than that.
+ *
+ * Requests that do not fit in the remaining budget wait in FIFO order
+ * until enough has been released, so that a big document is not
+ * starved by a stream of smaller ones. Requests that can never fit,
+ * or that have waited too long, are rejected.
+ */
+public class AdmissionController {
+    private long _budget;
+    private long _available;
+    private int _factor;
+    private int _compressionRatio;
+    private long _timeoutMilliseconds;
+    private LinkedList<Object> _waiting;
+
+    /**
+     * Thrown when a request cannot be admitted
+     */
+    public static class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private boolean _tooLarge;
+
+        public RejectedException(String message, boolean tooLarge) {
+            super(message);
+            _tooLarge = tooLarge;
+        }
+
+        /**
+         * Return true if the document can never be admitted, false if
+         * it was rejected because the server is busy
+         */
+        public boolean isTooLarge() {
+            return _tooLarge;
+        }
+    }
+
+    /**
+     * A reservation of part of the budget, release it when the
+     * request has been fully handled
+     */
+    public class Reservation {
+        private long _bytes;
+        private long _documentSize;
+
+        private Reservation(long bytes, long documentSize) {
+            _bytes = bytes;
+            _documentSize = documentSize;
+        }
+
+        public long getBytes() {
+            return _bytes;
+        }
+
+        /**
+         * Return the (uncompressed) document size the reservation
+         * was made for
+         */
+        public long getDocumentSize() {
+            return _documentSize;
+        }
+
+        public void release() {
+            if (_bytes > 0) {
+                AdmissionController.this.release(_bytes);
+                _bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Initializer
+     *
+     * @param budget The total number of bytes that may be reserved at once
+     * @param factor The estimated heap cost per byte of input document
+     * @param timeoutSeconds How long a request may wait for budget
+     */
+    public AdmissionController(long budget, int factor, int timeoutSeconds) {
+        _budget = budget;
+        _available = budget;
+        _factor = factor;
+        _compressionRatio = 20;
+        _timeoutMilliseconds = timeoutSeconds * 1000L;
+        _waiting = new LinkedList<Object>();
+    }
+
+    /**
+     * Return the estimated heap cost of a document of the given size
+     */
+    public long estimate(long documentSize) {
+        return documentSize * _factor;
+    }
+
+    /**
+     * Set the largest ratio of uncompressed to compressed size that
+     * memory is reserved for, see reserveCompressed()
+     */
+    public void setCompressionRatio(int ratio) {
+        _compressionRatio = ratio;
+    }
+
+    /**
+     * Return the size of the largest document that fits in the budget
+     */
+    public long getLargestDocumentSize() {
+        return _budget / _factor;
+    }
+
+    public long getBudget() {
+        return _budget;
+    }
+
+    public synchronized long getAvailable() {
+        return _available;
+    }
+
+    /**
+     * Reserve memory for a document of the given size, waiting if
+     * necessary
+     *
+     * @param documentSize The document size as announced by the client
+     * @return The reservation, which must be released when done
+     * @throws RejectedException if the document is too large to
+     *         ever be admitted, or if the wait time has been exceeded
+     * @throws IllegalArgumentException if the size is not positive
+     *         (which would add to the budget instead)
+     */
+    public Reservation reserve(long documentSize) throws RejectedException, InterruptedException {
+        long needed = estimate(documentSize);
+        if (needed <= 0) {
+            throw new IllegalArgumentException("Bad document size: " + documentSize);
+        }
+        if (needed > _budget) {
+            throw new RejectedException("document too large (" + documentSize + " bytes)", true);
+        }
+        Object ticket = new Object();
+        long deadline = System.currentTimeMillis() + _timeoutMilliseconds;
+        synchronized (this) {
+            _waiting.addLast(ticket);
+            try {
+                while (_waiting.getFirst() != ticket || _available < needed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new RejectedException("server busy, retry later", false);
+                    }
+                    wait(remaining);
+                }
+                _available -= needed;
+            } finally {
+                _waiting.remove(ticket);
+                // The next in line may fit as well
+                notifyAll();
+            }
+        }
+        return new Reservation(needed, documentSize);
+    }
+
+    /**
+     * Reserve memory for a compressed document, waiting if necessary
+     *
+     * The reservation is for the compressed size times the compression
+     * ratio, but never more than the largest document that fits in the
+     * budget; the caller must not decompress more than
+     * Reservation.getDocumentSize() bytes.
+     *
+     * @param compressedSize The compressed size as announced by the client
+     * @return The reservation, which must be released when done
+     * @throws RejectedException if the document is too large to
+     *         ever be admitted, or if the wait time has been exceeded
+     */
+    public Reservation reserveCompressed(long compressedSize) throws RejectedException, InterruptedException {
+        long largest = getLargestDocumentSize();
+        return reserve(Math.max(Math.min(compressedSize * _compressionRatio, largest), compressedSize));
+    }
+
+    private synchronized void release(long bytes) {
+        _available += bytes;
+        notifyAll();
+    }
+}
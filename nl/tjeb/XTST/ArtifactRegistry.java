@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.trace.XSLTTraceCodeInjector;
+import net.sf.saxon.trans.CompilerInfo;
+
+/**
+ * Registry of compiled stylesheets and schemas, shared by all handlers
+ *
+ * In multimode, many handlers often use the same stylesheets and
+ * schemas. Compiled artifacts are kept here, keyed by a hash of their
+ * content, so that each is compiled (and kept in memory) only once.
+ * Handlers acquire the artifacts they use, and release them when they
+ * are reloaded or replaced; an artifact is dropped from the registry
+ * when no handler uses it anymore. Since unchanged files are found in
+ * the registry, a reload only compiles what has actually changed.
+ *
+ * Every file that is included or imported while compiling is recorded
+ * with its hash, and an artifact is only reused if all of these still
+ * have the same content; a local file is only read again to check
+ * this if its modification time or size has changed. Since relative
+ * includes are resolved against the location of the file, a schema
+ * that includes other files is only shared when it is loaded from the
+ * same location. Stylesheets
+ * are always shared by location, since relative URIs in them (e.g. in
+ * document()) are also resolved against it at run time.
+ *
+ * All stylesheets are compiled with one Saxon configuration, so that
+ * a document tree can be passed to the stylesheets of any handler.
+ */
+public class ArtifactRegistry {
+    private static final ArtifactRegistry _shared = new ArtifactRegistry();
+
+    private net.sf.saxon.s9api.Processor _processor;
+    private TransformerFactoryImpl _transformFactory;
+    private HashMap<String, ArrayList<Entry>> _entries;
+    private IdentityHashMap<Object, Entry> _byArtifact;
+
+    /**
+     * A compiled artifact, with the files it was compiled from
+     */
+    private static class Entry {
+        String key;
+        String location;
+        Object artifact;
+        // The URIs of all files that were read while compiling
+        LinkedHashMap<String, Dependency> dependencies;
+        int references;
+
+        Entry(String key, String location, Object artifact, LinkedHashMap<String, Dependency> dependencies) {
+            this.key = key;
+            this.location = location;
+            this.artifact = artifact;
+            this.dependencies = dependencies;
+            this.references = 1;
+        }
+    }
+
+    /**
+     * A file that was read while compiling
+     */
+    private static class Dependency {
+        String hash;
+        // For a local file, its modification time and size when it
+        // was hashed (the file is null otherwise)
+        File file;
+        long modified;
+        long size;
+
+        Dependency(String uri) {
+            if (uri.startsWith("file:")) {
+                file = new File(URI.create(uri));
+                modified = file.lastModified();
+                size = file.length();
+            }
+        }
+
+        /**
+         * Return true if the file may have changed since it was hashed
+         */
+        boolean mayHaveChanged() {
+            return file == null || file.lastModified() != modified || file.length() != size;
+        }
+    }
+
+    private ArtifactRegistry() {
+        _processor = new net.sf.saxon.s9api.Processor(false);
+        Configuration saxonConfig = _processor.getUnderlyingConfiguration();
+        saxonConfig.setLineNumbering(true);
+        saxonConfig.setRecoveryPolicy(Configuration.RECOVER_SILENTLY);
+        saxonConfig.registerExtensionFunction(new LineNumbers());
+        _transformFactory = new TransformerFactoryImpl(saxonConfig);
+        _entries = new HashMap<String, ArrayList<Entry>>();
+        _byArtifact = new IdentityHashMap<Object, Entry>();
+    }
+
+    /**
+     * Return the registry used by all handlers
+     */
+    public static ArtifactRegistry getShared() {
+        return _shared;
+    }
+
+    /**
+     * Return the Saxon processor that all stylesheets are compiled
+     * with; document trees for them must be built with it as well
+     */
+    public net.sf.saxon.s9api.Processor getProcessor() {
+        return _processor;
+    }
+
+    /**
+     * Return the transformer factory of the shared Saxon
+     * configuration, for identity transformations (such as
+     * serializing results); a new factory would set up a whole new
+     * configuration
+     */
+    public SAXTransformerFactory getTransformerFactory() {
+        return _transformFactory;
+    }
+
+    /**
+     * Return the number of distinct compiled artifacts in use
+     */
+    public synchronized int size() {
+        return _byArtifact.size();
+    }
+
+    /**
+     * Return the compiled stylesheet for the given file, compiling it
+     * if there is no usable one in the registry yet
+     *
+     * @param xsltFileName The stylesheet file
+     * @return The compiled stylesheet; pass it to release() when it
+     *         is no longer used
+     * @throws IOException if the file cannot be read
+     * @throws TransformerConfigurationException if it cannot be compiled
+     */
+    public synchronized Templates acquireStylesheet(String xsltFileName) throws IOException, TransformerConfigurationException {
+        File file = new File(xsltFileName).getCanonicalFile();
+        String location = file.toURI().toString();
+        byte[] content = Files.readAllBytes(file.toPath());
+        String key = "xsl:" + hash(content);
+
+        Entry entry = find(key, location, true);
+        if (entry != null) {
+            System.out.println("Reusing compiled XSLT file " + xsltFileName + " (" + entry.references + " other users)");
+            entry.references++;
+            return (Templates) entry.artifact;
+        }
+
+        System.out.println("Compiling XSLT file " + xsltFileName);
+        RecordingResolver resolver = new RecordingResolver();
+        CompilerInfo info = new CompilerInfo(_transformFactory.getConfiguration().getDefaultXsltCompilerInfo());
+        info.setURIResolver(resolver);
+        Templates templates = _transformFactory.newTemplates(new StreamSource(new ByteArrayInputStream(content), location), info);
+        add(new Entry(key, location, templates, resolver.dependencies));
+        return templates;
+    }
+
+    /**
+     * Compile a stylesheet with tracing code, for StylesheetProfiler;
+     * the result is not shared, and not kept in the registry
+     *
+     * @param xsltFileName The stylesheet file
+     * @return The compiled stylesheet
+     * @throws TransformerConfigurationException if it cannot be compiled
+     */
+    public Templates compileForProfiling(String xsltFileName) throws TransformerConfigurationException {
+        CompilerInfo info = new CompilerInfo(_transformFactory.getConfiguration().getDefaultXsltCompilerInfo());
+        info.setCodeInjector(new XSLTTraceCodeInjector());
+        return _transformFactory.newTemplates(new StreamSource(new File(xsltFileName)), info);
+    }
+
+    /**
+     * Return the compiled schema for the given set of XSD files,
+     * compiling it if there is no usable one in the registry yet
+     *
+     * @param xsdFileNames The XSD files, which are combined into one
+     *        schema
+     * @return The compiled schema; pass it to release() when it is no
+     *         longer used
+     * @throws IOException if one of the files cannot be read
+     * @throws SAXException if the schema cannot be compiled
+     */
+    public synchronized Schema acquireSchema(Collection<String> xsdFileNames) throws IOException, SAXException {
+        ArrayList<StreamSource> sources = new ArrayList<StreamSource>();
+        StringBuilder locations = new StringBuilder();
+        StringBuilder hashes = new StringBuilder();
+        for (String xsdFileName : xsdFileNames) {
+            File file = new File(xsdFileName).getCanonicalFile();
+            byte[] content = Files.readAllBytes(file.toPath());
+            String location = file.toURI().toString();
+            locations.append(location).append(' ');
+            hashes.append(hash(content)).append(' ');
+            sources.add(new StreamSource(new ByteArrayInputStream(content), location));
+        }
+        String key = "xsd:" + hash(hashes.toString().getBytes("UTF-8"));
+
+        // A compiled schema that does not include other files does not
+        // depend on where it was loaded from
+        Entry entry = find(key, locations.toString(), false);
+        if (entry != null) {
+            System.out.println("Reusing compiled XSD files " + xsdFileNames + " (" + entry.references + " other users)");
+            entry.references++;
+            return (Schema) entry.artifact;
+        }
+
+        System.out.println("Compiling XSD files " + xsdFileNames);
+        RecordingResolver resolver = new RecordingResolver();
+        SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        schemaFactory.setResourceResolver(resolver);
+        Schema schema = schemaFactory.newSchema(sources.toArray(new Source[sources.size()]));
+        add(new Entry(key, locations.toString(), schema, resolver.dependencies));
+        return schema;
+    }
+
+    /**
+     * Release an artifact returned by one of the acquire methods
+     *
+     * @param artifact The compiled stylesheet or schema
+     */
+    public synchronized void release(Object artifact) {
+        Entry entry = _byArtifact.get(artifact);
+        if (entry == null) {
+            return;
+        }
+        entry.references--;
+        if (entry.references == 0) {
+            _byArtifact.remove(artifact);
+            ArrayList<Entry> candidates = _entries.get(entry.key);
+            candidates.remove(entry);
+            if (candidates.isEmpty()) {
+                _entries.remove(entry.key);
+            }
+        }
+    }
+
+    private Entry find(String key, String location, boolean sameLocation) {
+        ArrayList<Entry> candidates = _entries.get(key);
+        if (candidates == null) {
+            return null;
+        }
+        for (Entry entry : candidates) {
+            if ((sameLocation || !entry.dependencies.isEmpty()) && !location.equals(entry.location)) {
+                continue;
+            }
+            if (dependenciesUnchanged(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void add(Entry entry) {
+        ArrayList<Entry> candidates = _entries.get(entry.key);
+        if (candidates == null) {
+            candidates = new ArrayList<Entry>();
+            _entries.put(entry.key, candidates);
+        }
+        candidates.add(entry);
+        _byArtifact.put(entry.artifact, entry);
+    }
+
+    private boolean dependenciesUnchanged(Entry entry) {
+        for (Map.Entry<String, Dependency> dependency : entry.dependencies.entrySet()) {
+            if (!dependency.getValue().mayHaveChanged()) {
+                continue;
+            }
+            try {
+                // Only touched (or not a local file), compare the content
+                Dependency current = new Dependency(dependency.getKey());
+                current.hash = hash(read(dependency.getKey()));
+                if (!current.hash.equals(dependency.getValue().hash)) {
+                    return false;
+                }
+                dependency.setValue(current);
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] read(String uri) throws IOException {
+        InputStream in = URI.create(uri).toURL().openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest) {
+                result.append(String.format("%02x", b & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support SHA-256
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    private static String resolve(String href, String base) throws URISyntaxException {
+        if (base == null || base.length() == 0) {
+            return new URI(href).toString();
+        }
+        return new URI(base).resolve(href).toString();
+    }
+
+    /**
+     * Resolver for included and imported stylesheets and schemas, that
+     * reads them itself so that it can record their content hashes
+     */
+    private static class RecordingResolver implements URIResolver, LSResourceResolver {
+        LinkedHashMap<String, Dependency> dependencies = new LinkedHashMap<String, Dependency>();
+
+        private byte[] readDependency(String uri) throws IOException {
+            // Take the modification time before reading, so that a
+            // change while reading is noticed later
+            Dependency dependency = new Dependency(uri);
+            byte[] content = read(uri);
+            dependency.hash = hash(content);
+            dependencies.put(uri, dependency);
+            return content;
+        }
+
+        public Source resolve(String href, String base) throws TransformerException {
+            try {
+                String uri = ArtifactRegistry.resolve(href, base);
+                return new StreamSource(new ByteArrayInputStream(readDependency(uri)), uri);
+            } catch (URISyntaxException use) {
+                throw new TransformerException(use);
+            } catch (IOException ioe) {
+                throw new TransformerException(ioe);
+            }
+        }
+
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+            if (systemId == null) {
+                // An import without a schemaLocation, leave it to the
+                // schema factory
+                return null;
+            }
+            try {
+                String uri = ArtifactRegistry.resolve(systemId, baseURI);
+                DOMImplementationLS domImplementation = (DOMImplementationLS)
+                    DocumentBuilderFactory.newInstance().newDocumentBuilder().getDOMImplementation();
+                LSInput input = domImplementation.createLSInput();
+                input.setByteStream(new ByteArrayInputStream(readDependency(uri)));
+                input.setSystemId(uri);
+                input.setPublicId(publicId);
+                return input;
+            } catch (URISyntaxException use) {
+                return null;
+            } catch (IOException ioe) {
+                // Let the schema factory report the missing file
+                return null;
+            } catch (ParserConfigurationException pce) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Offline batch transformation of many files
+ *
+ * All files are processed with one DocumentHandler, so the stylesheets
+ * and schemas are compiled only once, by a number of threads in
+ * parallel. The result for each file is written to an output directory
+ * under the same (relative) name; for a file list, that is the name as
+ * listed, or just the file name if the listed name is absolute or goes
+ * up a directory. Files that fail validation or
+ * transformation are reported, and a summary is printed at the end.
+ */
+public class BatchProcessor {
+    private DocumentHandler _handler;
+    private File _outputDirectory;
+    private int _threads;
+
+    private AtomicInteger _succeeded;
+    private AtomicInteger _failed;
+    private AtomicLong _bytesRead;
+
+    /**
+     * Initializer
+     *
+     * @param handler The document handler to process the files with
+     * @param outputDirectory The directory to write the results to
+     * @param threads The number of files to process concurrently
+     */
+    public BatchProcessor(DocumentHandler handler, String outputDirectory, int threads) {
+        _handler = handler;
+        _outputDirectory = new File(outputDirectory);
+        _threads = threads;
+        _succeeded = new AtomicInteger();
+        _failed = new AtomicInteger();
+        _bytesRead = new AtomicLong();
+    }
+
+    /**
+     * Collect the files to process
+     *
+     * @param directoryOrList A directory (all files in it, recursively,
+     *        are processed), or a text file that lists one file name
+     *        per line
+     * @return A list of [input file, output file] pairs
+     * @throws IOException if the list cannot be read
+     */
+    private ArrayList<File[]> collectFiles(String directoryOrList) throws IOException {
+        ArrayList<File[]> files = new ArrayList<File[]>();
+        File base = new File(directoryOrList);
+        if (base.isDirectory()) {
+            collectDirectory(base, _outputDirectory, files);
+        } else {
+            BufferedReader reader = new BufferedReader(new FileReader(base));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0) {
+                        Path listed = Paths.get(line).normalize();
+                        Path relative = listed;
+                        if (listed.isAbsolute() || listed.startsWith("..")) {
+                            relative = listed.getFileName();
+                        }
+                        files.add(new File[] { listed.toFile(), new File(_outputDirectory, relative.toString()) });
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return files;
+    }
+
+    private void collectDirectory(File dir, File outDir, ArrayList<File[]> files) {
+        String[] entries = dir.list();
+        java.util.Arrays.sort(entries);
+        for (String filename : entries) {
+            File entry = new File(dir, filename);
+            if (entry.isDirectory()) {
+                collectDirectory(entry, new File(outDir, filename), files);
+            } else {
+                files.add(new File[] { entry, new File(outDir, filename) });
+            }
+        }
+    }
+
+    /**
+     * Validate and transform one file
+     *
+     * @param in The file to process
+     * @param out The file to write the result to
+     * @throws Exception if validation or transformation fails
+     */
+    private void processFile(File in, File out) throws Exception {
+        MappedDocument document = new MappedDocument(in);
+        _bytesRead.addAndGet(document.getSize());
+        // Validate and build the tree in one pass over the mapped file
+        XSLTTransformer transformer = _handler.getTransformer();
+        Source tree = _handler.parse(SAXSource.sourceToInputSource(document.newSource()), transformer);
+        out.getParentFile().mkdirs();
+        FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        OutputStream result = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+        boolean done = false;
+        try {
+            transformer.transformTree(tree, result, XSLTTransformer.OUTPUT_FULL);
+            done = true;
+        } finally {
+            result.close();
+            // Don't leave partial results behind
+            if (!done) {
+                out.delete();
+            }
+        }
+    }
+
+    /**
+     * Process all files, and print a summary
+     *
+     * @param directoryOrList The directory or file list to process
+     * @return true if all files were processed successfully
+     * @throws IOException if the file list cannot be read
+     */
+    public boolean run(String directoryOrList) throws IOException, InterruptedException {
+        ArrayList<File[]> files = collectFiles(directoryOrList);
+        // Two files must not be written to the same result
+        HashMap<File, File> written = new HashMap<File, File>();
+        for (File[] file : files) {
+            File other = written.put(file[1], file[0]);
+            if (other != null) {
+                System.err.println("Error: " + other + " and " + file[0] + " would both be written to " + file[1]);
+                return false;
+            }
+        }
+        System.err.println("Processing " + files.size() + " files with " + _threads + " threads");
+
+        long start = System.currentTimeMillis();
+        ExecutorService workers = Executors.newFixedThreadPool(_threads);
+        for (final File[] file : files) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        processFile(file[0], file[1]);
+                        _succeeded.incrementAndGet();
+                    } catch (SAXException saxe) {
+                        System.err.println("Error: " + file[0] + ": invalid " + saxe.toString());
+                        _failed.incrementAndGet();
+                    } catch (Exception exc) {
+                        System.err.println("Error: " + file[0] + ": " + exc.toString());
+                        _failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+        double seconds = elapsed / 1000.0;
+        System.err.println(String.format("Processed %d files (%d succeeded, %d failed) in %.2f seconds",
+                                         files.size(), _succeeded.get(), _failed.get(), seconds));
+        System.err.println(String.format("Throughput: %.1f files/s, %.2f MB/s",
+                                         files.size() / seconds,
+                                         _bytesRead.get() / (1024.0 * 1024.0) / seconds));
+        return _failed.get() == 0;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most a given number of bytes from a stream
+ *
+ * Used to hand one length-prefixed message on a connection to a parser
+ * as it arrives. Closing this stream does not close the underlying
+ * stream (parsers close their input when they are done).
+ */
+class BoundedInputStream extends InputStream {
+    private InputStream _in;
+    private long _remaining;
+
+    BoundedInputStream(InputStream in, long size) {
+        _in = in;
+        _remaining = size;
+    }
+
+    /**
+     * Return the number of bytes of the message that have not been read
+     */
+    long getRemaining() {
+        return _remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (_remaining <= 0) {
+            return -1;
+        }
+        int b = _in.read();
+        if (b < 0) {
+            throw new IOException("Connection closed before the end of the message");
+        }
+        _remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (_remaining <= 0) {
+            return -1;
+        }
+        int read = _in.read(b, off, (int) Math.min(len, _remaining));
+        if (read < 0) {
+            throw new IOException("Connection closed before the end of the message");
+        }
+        _remaining -= read;
+        return read;
+    }
+
+    /**
+     * Read and discard the rest of the message
+     */
+    void skipRemaining() throws IOException {
+        byte[] buf = new byte[8192];
+        while (read(buf, 0, buf.length) > 0) {
+        }
+    }
+
+    @Override
+    public void close() {
+        // leave the underlying stream open
+    }
+}
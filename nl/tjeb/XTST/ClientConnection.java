@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection from a client, accepted on a TCP socket or on a UNIX
+ * domain socket (see ListenerSettings)
+ */
+abstract class ClientConnection {
+    // Closes UNIX domain socket connections that have been idle too long
+    private static ScheduledExecutorService _idleCloser;
+
+    abstract InputStream getInputStream() throws IOException;
+
+    abstract OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Make reading fail (and the connection be closed) if no data
+     * arrives within the given time
+     *
+     * @param milliseconds The time, or 0 to wait forever
+     * @throws IOException if the timeout cannot be set
+     */
+    abstract void setIdleTimeout(int milliseconds) throws IOException;
+
+    abstract void close() throws IOException;
+
+    /**
+     * Return the connection for an accepted TCP socket
+     */
+    static ClientConnection forSocket(final Socket socket) {
+        return new ClientConnection() {
+            InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            void setIdleTimeout(int milliseconds) throws IOException {
+                socket.setSoTimeout(milliseconds);
+            }
+
+            void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    /**
+     * Return the connection for an accepted UNIX domain socket
+     *
+     * Socket channels have no read timeout; instead, the channel is
+     * closed when the idle time has passed, which makes a blocked read
+     * fail.
+     */
+    static ClientConnection forChannel(final SocketChannel channel) {
+        return new ClientConnection() {
+            private ScheduledFuture<?> _idleClose;
+
+            InputStream getInputStream() {
+                return Channels.newInputStream(channel);
+            }
+
+            OutputStream getOutputStream() {
+                return Channels.newOutputStream(channel);
+            }
+
+            synchronized void setIdleTimeout(int milliseconds) {
+                if (_idleClose != null) {
+                    _idleClose.cancel(false);
+                    _idleClose = null;
+                }
+                if (milliseconds > 0) {
+                    _idleClose = idleCloser().schedule(new Runnable() {
+                        public void run() {
+                            try {
+                                channel.close();
+                            } catch (IOException ioe) {
+                                // nothing left to do
+                            }
+                        }
+                    }, milliseconds, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            void close() throws IOException {
+                setIdleTimeout(0);
+                channel.close();
+            }
+        };
+    }
+
+    private static synchronized ScheduledExecutorService idleCloser() {
+        if (_idleCloser == null) {
+            _idleCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "idle connection closer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _idleCloser;
+    }
+}
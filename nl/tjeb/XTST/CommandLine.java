@@ -24,12 +24,16 @@ import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
-import javax.xml.validation.*;
-import javax.xml.XMLConstants;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
+import static net.sourceforge.argparse4j.impl.Arguments.append;
 import static net.sourceforge.argparse4j.impl.Arguments.storeTrue;
 
 
@@ -38,21 +42,62 @@ import static net.sourceforge.argparse4j.impl.Arguments.storeTrue;
  */
 public class CommandLine {
     int port;
+    int httpPort;
     String host;
     String xmlFile;
+    String batch;
+    String outputDirectory;
+    String keyword;
     boolean multimode;
     String xsltFile;
     String xsdFile;
     int checkEverySeconds;
+    int threads;
+    int connections;
+    int adaptiveLimit;
+    long memoryBudget;
+    int memoryFactor;
+    int admissionTimeout;
+    int compressionRatio;
+    int spoolThreshold;
+    int costHistory;
+    int documentCache;
+    List<String> backends;
+    int backendConnections;
+    int healthCheckSeconds;
+    int shard;
+    int shards;
+    ListenerSettings listener;
 
     public CommandLine(String[] args) {
         host = "localhost";
         port = 35791;
+        httpPort = -1;
         xmlFile = null;
+        batch = null;
+        outputDirectory = null;
+        keyword = null;
         multimode = false;
         xsltFile = null;
         xsdFile = null;
         checkEverySeconds = 30;
+        threads = Runtime.getRuntime().availableProcessors();
+        connections = 256;
+        adaptiveLimit = 0;
+        // By default, half of the maximum heap may be used for documents
+        memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+        memoryFactor = 10;
+        admissionTimeout = 30;
+        compressionRatio = 20;
+        spoolThreshold = 1024;
+        costHistory = 1000;
+        documentCache = 64;
+        backends = null;
+        backendConnections = 1;
+        healthCheckSeconds = 5;
+        shard = 0;
+        shards = 0;
+        listener = new ListenerSettings();
 
         parseArguments(args);
     }
@@ -65,13 +110,82 @@ public class CommandLine {
                 .help("Listen on the given hostname or IP address (defaults to localhost)");
         parser.addArgument("-p", "--port")
                 .type(Integer.class)
-                .help("Listen on the given port number (defaults to 35791)");
+                .help("Listen on the given port number (defaults to 35791), -1 to only listen on --unix-socket");
+        parser.addArgument("--http-port")
+                .type(Integer.class)
+                .help("Also listen for HTTP requests on the given port number");
         parser.addArgument("-f", "--file")
                 .help("Do not start a server but just transform the given xml file");
+        parser.addArgument("-b", "--batch")
+                .help("Do not start a server but transform all files in the given directory, or listed in the given file (one per line)");
+        parser.addArgument("-o", "--output-directory")
+                .help("Directory to write the results of a batch transformation to");
+        parser.addArgument("-k", "--keyword")
+                .help("The handler to use for a batch transformation in multimode");
         parser.addArgument("-c", "--check")
                 .type(Integer.class)
                 .help("Check the xsl file every X seconds (defaults to 30)");
-        parser.addArgument("xslt_file_or_directory")
+        parser.addArgument("-t", "--threads")
+                .type(Integer.class)
+                .help("Number of documents to process concurrently (defaults to the number of processors)");
+        parser.addArgument("--connections")
+                .type(Integer.class)
+                .help("Number of client connections to handle concurrently (defaults to 256)");
+        parser.addArgument("--adaptive-limit")
+                .type(Integer.class)
+                .help("Adapt the number of documents processed concurrently to the measured processing times, up to the given maximum (instead of the fixed number of -t)");
+        parser.addArgument("--memory-budget")
+                .type(Integer.class)
+                .help("Memory (in MB) that may be reserved for documents being processed (defaults to half the maximum heap size)");
+        parser.addArgument("--memory-factor")
+                .type(Integer.class)
+                .help("Estimated memory needed per byte of document (defaults to 10)");
+        parser.addArgument("--admission-timeout")
+                .type(Integer.class)
+                .help("Reject a document if no memory is available for it after X seconds (defaults to 30)");
+        parser.addArgument("--compression-ratio")
+                .type(Integer.class)
+                .help("Reserve memory for compressed documents as if they decompress to X times their size, and reject those that decompress to more (defaults to 20)");
+        parser.addArgument("--spool-threshold")
+                .type(Integer.class)
+                .help("Keep transformation results up to X KB in memory, larger ones are written to a temporary file before they are sent (defaults to 1024)");
+        parser.addArgument("--document-cache")
+                .type(Integer.class)
+                .help("Memory (in MB) for the documents that stylesheets load with document(), shared by all handlers; 0 disables the cache (defaults to 64)");
+        parser.addArgument("--cost-history")
+                .type(Integer.class)
+                .help("Number of recent requests whose processor time and memory use are kept for the top command (defaults to 1000)");
+        parser.addArgument("--unix-socket")
+                .help("Also listen on a UNIX domain socket at the given path, for clients on the same host");
+        parser.addArgument("--unix-socket-mode")
+                .help("The permissions of the --unix-socket file, in octal (defaults to 600: only the user running the server may connect)");
+        parser.addArgument("--acceptors")
+                .type(Integer.class)
+                .help("Number of threads accepting connections, each with its own socket if SO_REUSEPORT is supported (defaults to 1)");
+        parser.addArgument("--backlog")
+                .type(Integer.class)
+                .help("Maximum number of pending connections per listening socket (defaults to 100)");
+        parser.addArgument("--tcp-nodelay")
+                .action(storeTrue())
+                .help("Disable Nagle's algorithm on client connections");
+        parser.addArgument("--receive-buffer")
+                .type(Integer.class)
+                .help("Socket receive buffer size in bytes (defaults to the system default)");
+        parser.addArgument("--send-buffer")
+                .type(Integer.class)
+                .help("Socket send buffer size in bytes (defaults to the system default)");
+        parser.addArgument("--backend")
+                .action(append())
+                .help("Run as a proxy for the given backend server (host:port), give once for every shard; several comma-separated addresses serve the same shard");
+        parser.addArgument("--backend-connections")
+                .type(Integer.class)
+                .help("Number of idle connections the proxy keeps to every backend, must be lower than the number of connections of the backends (defaults to 1)");
+        parser.addArgument("--health-check")
+                .type(Integer.class)
+                .help("Check the backends of the proxy every X seconds (defaults to 5)");
+        parser.addArgument("--shard")
+                .help("In multimode, only load the handlers of shard I of N shards (given as I/N, with I from 0), when running behind a proxy");
+        parser.addArgument("xslt_file_or_directory").nargs("?")
                 .help("XSLT file to use for transformations");
         parser.addArgument("xsd_file").nargs("?").help("XSD schema to validate against");
         parser.addArgument("-m", "--multimode")
@@ -103,14 +217,119 @@ public class CommandLine {
             if (ns.get("port") != null) {
                 port = ((Integer)ns.get("port")).intValue();
             }
+            if (ns.get("http_port") != null) {
+                httpPort = ((Integer)ns.get("http_port")).intValue();
+            }
             if (ns.get("file") != null) {
                 xmlFile = ns.get("file");
             }
+            if (ns.get("batch") != null) {
+                batch = ns.get("batch");
+                outputDirectory = ns.get("output_directory");
+                keyword = ns.get("keyword");
+                if (outputDirectory == null) {
+                    System.out.println("A batch transformation needs an output directory (-o)");
+                    System.exit(1);
+                }
+                if (multimode && keyword == null) {
+                    System.out.println("A batch transformation in multimode needs a keyword (-k)");
+                    System.exit(1);
+                }
+            }
             if (ns.get("check") != null) {
                 checkEverySeconds = ((Integer)ns.get("check")).intValue();
             }
+            if (ns.get("threads") != null) {
+                threads = ((Integer)ns.get("threads")).intValue();
+            }
+            if (ns.get("connections") != null) {
+                connections = ((Integer)ns.get("connections")).intValue();
+            }
+            if (ns.get("adaptive_limit") != null) {
+                adaptiveLimit = ((Integer)ns.get("adaptive_limit")).intValue();
+            }
+            if (ns.get("memory_budget") != null) {
+                memoryBudget = ((Integer)ns.get("memory_budget")).longValue() * 1024 * 1024;
+            }
+            if (ns.get("memory_factor") != null) {
+                memoryFactor = ((Integer)ns.get("memory_factor")).intValue();
+            }
+            if (ns.get("admission_timeout") != null) {
+                admissionTimeout = ((Integer)ns.get("admission_timeout")).intValue();
+            }
+            if (ns.get("compression_ratio") != null) {
+                compressionRatio = ((Integer)ns.get("compression_ratio")).intValue();
+            }
+            if (ns.get("spool_threshold") != null) {
+                spoolThreshold = ((Integer)ns.get("spool_threshold")).intValue();
+            }
+            if (ns.get("document_cache") != null) {
+                documentCache = ((Integer)ns.get("document_cache")).intValue();
+            }
+            if (ns.get("cost_history") != null) {
+                costHistory = ((Integer)ns.get("cost_history")).intValue();
+            }
+            if (ns.get("acceptors") != null) {
+                listener.acceptors = ((Integer)ns.get("acceptors")).intValue();
+            }
+            if (ns.get("unix_socket") != null) {
+                listener.unixSocket = ns.get("unix_socket");
+            }
+            if (ns.get("unix_socket_mode") != null) {
+                listener.unixSocketMode = ns.get("unix_socket_mode");
+                try {
+                    ListenerSettings.permissions(listener.unixSocketMode);
+                } catch (IllegalArgumentException iae) {
+                    System.out.println("--unix-socket-mode: " + iae.getMessage());
+                    System.exit(1);
+                }
+            }
+            if (port < 0 && listener.unixSocket == null) {
+                System.out.println("-p -1 can only be used together with --unix-socket");
+                System.exit(1);
+            }
+            if (ns.get("backlog") != null) {
+                listener.backlog = ((Integer)ns.get("backlog")).intValue();
+            }
+            listener.tcpNoDelay = ns.getBoolean("tcp_nodelay");
+            if (ns.get("receive_buffer") != null) {
+                listener.receiveBufferSize = ((Integer)ns.get("receive_buffer")).intValue();
+            }
+            if (ns.get("send_buffer") != null) {
+                listener.sendBufferSize = ((Integer)ns.get("send_buffer")).intValue();
+            }
+            if (ns.get("backend") != null) {
+                backends = ns.getList("backend");
+            }
+            if (ns.get("backend_connections") != null) {
+                backendConnections = ((Integer)ns.get("backend_connections")).intValue();
+            }
+            if (ns.get("health_check") != null) {
+                healthCheckSeconds = ((Integer)ns.get("health_check")).intValue();
+            }
+            if (ns.get("shard") != null) {
+                String[] parts = ((String)ns.get("shard")).split("/");
+                try {
+                    shard = Integer.parseInt(parts[0]);
+                    shards = Integer.parseInt(parts[1]);
+                } catch (RuntimeException re) {
+                    shards = 0;
+                }
+                if (shards <= 0 || shard < 0 || shard >= shards) {
+                    System.out.println("--shard must be given as I/N, with 0 <= I < N");
+                    System.exit(1);
+                }
+                if (!multimode) {
+                    System.out.println("--shard can only be used in multimode");
+                    System.exit(1);
+                }
+            }
             xsltFile = ns.get("xslt_file_or_directory");
             xsdFile = ns.get("xsd_file");
+            if (xsltFile == null && backends == null) {
+                System.out.println("An XSLT file or (in multimode) a directory is required");
+                System.exit(1);
+            }
         } catch (ArgumentParserException e) {
             parser.handleError(e);
             System.exit(1);
@@ -118,27 +337,42 @@ public class CommandLine {
     }
 
     /**
-     * There are two run modes: single file, and server mode
+     * There are four run modes: single file, batch, proxy and server
+     * mode
      * Mode depends on whether xmlFile is set, in which case
-     * we will only transform the given file
+     * we will only transform the given file, or batch is set, in
+     * which case we transform all the files it contains or lists, or
+     * backends are set, in which case we pass requests on to them
      */
     public void run() {
-        if (xmlFile != null) {
+        DocumentCache.getShared().setBudget(documentCache * 1024L * 1024L);
+        if (backends != null) {
             try {
-                if (xsdFile != null) {
-                    SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-                    Schema schema = schemaFactory.newSchema(new File(xsdFile));
-                    Validator XSDValidator = schema.newValidator();
-
-                    StreamSource source = new StreamSource(new File(xmlFile));
-                    XSDValidator.validate(source);
-                }
-                ArrayList<String> xsltFiles = new ArrayList<String>();
-                xsltFiles.add(xsltFile);
-                XSLTTransformer sv = new XSLTTransformer(xsltFiles);
+                Thread t = new Proxy(host, port, backends, connections, backendConnections, healthCheckSeconds, listener);
+                t.start();
+            } catch(Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        } else if (batch != null) {
+            runBatch();
+        } else if (xmlFile != null) {
+            try {
+                // The result is written to stdout, so the messages of
+                // the handler go to stderr
+                System.setOut(System.err);
+                // Map the file, and parse it once, validating it against
+                // the XSD (if any) in the same pass, as the server does
+                MappedDocument document = new MappedDocument(new File(xmlFile));
+                DocumentHandler handler = new DocumentHandler(xsltFile, xsdFile, checkEverySeconds);
+                XSLTTransformer transformer = handler.getTransformer();
+                Source tree = handler.parse(SAXSource.sourceToInputSource(document.newSource()), transformer);
 
-                String result = sv.transformFile(xmlFile);
-                System.out.println(result);
+                // Stream the result to the stdout file channel
+                FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(stdout), 65536);
+                transformer.transformTree(tree, out, XSLTTransformer.OUTPUT_FULL);
+                out.flush();
             } catch (TransformerException te) {
                 te.printStackTrace();
                 System.exit(1);
@@ -152,14 +386,30 @@ public class CommandLine {
 
         } else {
             try {
-                DocumentHandlerManager manager = new DocumentHandlerManager(multimode, xsltFile, xsdFile, checkEverySeconds);
+                ShardRing ring = shards > 0 ? new ShardRing(shards) : null;
+                DocumentHandlerManager manager = new DocumentHandlerManager(multimode, xsltFile, xsdFile, checkEverySeconds, ring, shard);
 
                 if (manager.getDocumentHandlerCount() == 0) {
                     System.out.println("Warning: no directories with xtst.properties found in " + xsltFile);
                 }
 
-                Thread t = new Server(host, port, multimode, manager);
+                ResultSpool.setThreshold(spoolThreshold * 1024L);
+                AdmissionController admission = new AdmissionController(memoryBudget, memoryFactor, admissionTimeout);
+                admission.setCompressionRatio(compressionRatio);
+                FairScheduler scheduler;
+                if (adaptiveLimit > 0) {
+                    scheduler = new FairScheduler(adaptiveLimit, admissionTimeout, manager);
+                    scheduler.setLimit(new ConcurrencyLimit(1, 1, adaptiveLimit));
+                } else {
+                    scheduler = new FairScheduler(threads, admissionTimeout, manager);
+                }
+                CostAccounting costs = new CostAccounting(costHistory);
+                Thread t = new Server(host, port, multimode, manager, connections, admission, scheduler, listener, costs);
                 t.start();
+                if (httpPort >= 0) {
+                    HttpFrontend http = new HttpFrontend(host, httpPort, multimode, manager, connections, admission, scheduler, costs);
+                    http.start();
+                }
             } catch(Exception e) {
                 e.printStackTrace();
                 System.exit(1);
@@ -167,6 +417,34 @@ public class CommandLine {
         }
     }
 
+    /**
+     * Transform a directory or list of files with one handler
+     */
+    private void runBatch() {
+        try {
+            DocumentHandler handler;
+            if (multimode) {
+                // Only the handler for the keyword is used
+                DocumentHandlerManager manager = new DocumentHandlerManager(xsltFile, keyword, checkEverySeconds);
+                handler = manager.getDocumentHandler(keyword);
+                if (handler == null) {
+                    System.out.println("Error: unknown keyword '" + keyword + "'");
+                    System.exit(1);
+                }
+            } else {
+                DocumentHandlerManager manager = new DocumentHandlerManager(false, xsltFile, xsdFile, checkEverySeconds);
+                handler = manager.getDocumentHandler("default");
+            }
+            BatchProcessor processor = new BatchProcessor(handler, outputDirectory, threads);
+            if (!processor.run(batch)) {
+                System.exit(1);
+            }
+        } catch(Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     public static void main(String [] args) {
         CommandLine cl = new CommandLine(args);
         cl.run();
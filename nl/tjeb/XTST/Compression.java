@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Payload compression codecs that can be negotiated by a client
+ *
+ * Supported codecs are "gzip" (RFC 1952) and "deflate" (zlib format,
+ * RFC 1950). Only the document and the transformation result are
+ * compressed; commands and status messages are always sent as is.
+ */
+public class Compression {
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    public static boolean isSupported(String codec) {
+        return NONE.equals(codec) || GZIP.equals(codec) || DEFLATE.equals(codec);
+    }
+
+    /**
+     * Wrap a stream of compressed data in a decompressing stream
+     *
+     * @param codec The codec name
+     * @param in The compressed data
+     * @return The decompressed data
+     * @throws IOException if the data is not in the right format
+     */
+    public static InputStream wrapInput(String codec, InputStream in) throws IOException {
+        if (GZIP.equals(codec)) {
+            return new GZIPInputStream(in);
+        } else if (DEFLATE.equals(codec)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Wrap an output stream in a compressing stream; the returned
+     * stream must be closed (or finished) to write out the last data
+     *
+     * @param codec The codec name
+     * @param out The stream to write the compressed data to
+     * @return The stream to write uncompressed data to
+     * @throws IOException if the stream cannot be set up
+     */
+    public static OutputStream wrapOutput(String codec, OutputStream out) throws IOException {
+        if (GZIP.equals(codec)) {
+            return new GZIPOutputStream(out);
+        } else if (DEFLATE.equals(codec)) {
+            return new DeflaterOutputStream(out);
+        }
+        return out;
+    }
+}
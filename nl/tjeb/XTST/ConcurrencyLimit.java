@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.util.HashMap;
+
+/**
+ * An adaptive limit on the number of documents processed at the same
+ * time (AIMD: additive increase, multiplicative decrease)
+ *
+ * For every processed document, the time it took is compared to the
+ * usual time for documents of its keyword without load (documents of
+ * different handlers can take very different times). The limit starts
+ * low, so that the time without load can be measured. While documents
+ * take about as long as usual and others are waiting, the limit grows
+ * by one per round (a number of documents equal to the limit); until
+ * the first overload, it doubles every round instead. When they take
+ * more than twice as long as usual, the server is overloaded (the
+ * documents compete for processors, memory bandwidth or the garbage
+ * collector), and the limit is lowered by 10%, at most once per round.
+ *
+ * The limit is not thread-safe on its own, it is used under the lock
+ * of the FairScheduler.
+ */
+public class ConcurrencyLimit {
+    // Documents taking this many times as long as usual mean overload
+    private static final double TOLERANCE = 2.0;
+    // The factor the limit is lowered by on overload
+    private static final double BACKOFF = 0.9;
+    // How fast the usual time per keyword follows slower times
+    private static final double BASELINE_SMOOTHING = 0.005;
+    // How fast the latency ratio follows the measured times
+    private static final double RATIO_SMOOTHING = 0.2;
+
+    private int _min;
+    private int _max;
+    private double _limit;
+
+    private HashMap<String, Double> _baselines;
+    private double _ratio;
+    private double _serviceMilliseconds;
+    private int _samplesSinceDecrease;
+    private boolean _slowStart;
+
+    private long _increases;
+    private long _decreases;
+    private long _shed;
+
+    /**
+     * Initializer
+     *
+     * @param initial The limit to start with
+     * @param min The lowest the limit can get
+     * @param max The highest the limit can get
+     */
+    public ConcurrencyLimit(int initial, int min, int max) {
+        _min = min;
+        _max = max;
+        _limit = Math.max(min, Math.min(initial, max));
+        _baselines = new HashMap<String, Double>();
+        _ratio = 1.0;
+        _slowStart = true;
+    }
+
+    /**
+     * Return the current limit
+     */
+    public int getLimit() {
+        return (int) _limit;
+    }
+
+    /**
+     * Adjust the limit for a document that has been processed
+     *
+     * @param keyword The keyword of the document
+     * @param milliseconds The time the document took
+     * @param inFlight The number of documents that were being processed
+     *        (including this one)
+     * @param queued The number of documents waiting for their turn
+     */
+    public void sample(String keyword, long milliseconds, int inFlight, int queued) {
+        double time = Math.max(milliseconds, 1);
+        Double baseline = _baselines.get(keyword);
+        if (baseline == null) {
+            baseline = time;
+        }
+        _ratio += RATIO_SMOOTHING * (time / baseline - _ratio);
+        // The usual time is the time without load: it follows faster
+        // times at once, and slower times only slowly, and only if they
+        // do not look like overload (for when the documents really get
+        // bigger); a document processed on its own is never overloaded
+        if (time < baseline) {
+            baseline = time;
+        } else if (inFlight <= 1) {
+            baseline += RATIO_SMOOTHING * (time - baseline);
+        } else if (time < TOLERANCE * baseline) {
+            baseline += BASELINE_SMOOTHING * (time - baseline);
+        }
+        _baselines.put(keyword, baseline);
+        _serviceMilliseconds += (_serviceMilliseconds == 0 ? 1.0 : RATIO_SMOOTHING) * (time - _serviceMilliseconds);
+        _samplesSinceDecrease++;
+
+        int old = getLimit();
+        if (_ratio > TOLERANCE) {
+            // Give the last decrease a round to take effect
+            if (_samplesSinceDecrease >= old && _limit > _min) {
+                _limit = Math.max(_min, _limit * BACKOFF);
+                _samplesSinceDecrease = 0;
+                _slowStart = false;
+                if (getLimit() != old) {
+                    _decreases++;
+                    System.out.println("Concurrency limit lowered to " + getLimit() +
+                                       ", documents take " + Math.round(_ratio * 10) / 10.0 + " times as long as usual");
+                }
+            }
+        } else if (queued > 0 && inFlight >= old && _limit < _max) {
+            _limit = Math.min(_max, _limit + (_slowStart ? 1.0 : 1.0 / _limit));
+            if (getLimit() != old) {
+                _increases++;
+                System.out.println("Concurrency limit raised to " + getLimit());
+            }
+        }
+    }
+
+    /**
+     * Return true if a new request should be turned away right away,
+     * because at the current rate, the documents already waiting
+     * would not be done before its wait time runs out
+     *
+     * @param queued The number of documents waiting for their turn
+     * @param timeoutMilliseconds How long a request may wait
+     */
+    public boolean shouldShed(int queued, long timeoutMilliseconds) {
+        if (queued == 0) {
+            return false;
+        }
+        double expectedWait = (queued + 1) * _serviceMilliseconds / getLimit();
+        if (expectedWait > timeoutMilliseconds) {
+            _shed++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Describe the limit as an xml element:
+     *
+     * <Limit current="6" min="1" max="16" latencyRatio="1.2"
+     *        averageMs="40" increases="8" decreases="2" shed="0"/>
+     */
+    public String describe() {
+        return "<Limit current=\"" + getLimit() + "\"" +
+               " min=\"" + _min + "\"" +
+               " max=\"" + _max + "\"" +
+               " latencyRatio=\"" + Math.round(_ratio * 100) / 100.0 + "\"" +
+               " averageMs=\"" + (long) _serviceMilliseconds + "\"" +
+               " increases=\"" + _increases + "\"" +
+               " decreases=\"" + _decreases + "\"" +
+               " shed=\"" + _shed + "\"/>";
+    }
+}
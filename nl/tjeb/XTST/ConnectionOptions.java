@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+/**
+ * Options a client has set for its connection
+ *
+ * After the version banner, and before sending its actual command, a
+ * client may send any number of commands of the form
+ *
+ *     set <option> <value>
+ *
+ * Clients that do not send them get the default behaviour, so this
+ * does not change protocol version 3. Supported options:
+ *
+ * compression: none (default), gzip or deflate; when set, the XML
+ *              document and the transformation result are sent
+ *              compressed with the given codec (the length prefix is
+ *              that of the compressed data)
+ * output: full (default), compact, summary or failures; the form of
+ *         the transformation result, see XSLTTransformer
+ * keepalive: off (default) or on; when on, the connection stays open
+ *            after a command has succeeded, for the next command
+ */
+class ConnectionOptions {
+    String compression = Compression.NONE;
+    String output = XSLTTransformer.OUTPUT_FULL;
+    boolean keepalive = false;
+
+    /**
+     * Set an option from a "set <option> <value>" command
+     *
+     * @param command The full command string
+     * @return null if the option was set, an error message otherwise
+     */
+    String set(String command) {
+        String[] parts = command.split(" ");
+        if (parts.length != 3) {
+            return "set needs an option and a value";
+        }
+        String option = parts[1];
+        String value = parts[2];
+        if (option.equals("compression")) {
+            if (!Compression.isSupported(value)) {
+                return "unsupported compression '" + value + "'";
+            }
+            compression = value;
+            return null;
+        }
+        if (option.equals("output")) {
+            if (!XSLTTransformer.isOutputMode(value)) {
+                return "unknown output mode '" + value + "'";
+            }
+            output = value;
+            return null;
+        }
+        if (option.equals("keepalive")) {
+            if (!value.equals("on") && !value.equals("off")) {
+                return "keepalive must be on or off";
+            }
+            keepalive = value.equals("on");
+            return null;
+        }
+        return "unknown option '" + option + "'";
+    }
+
+    boolean isCompressed() {
+        return !Compression.NONE.equals(compression);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the processor time and memory used by the processed requests
+ * (see RequestCost)
+ *
+ * The totals are kept per keyword (and per phase), since the server
+ * was started. The most recent requests are kept individually, in a
+ * ring buffer of a fixed size, so that the most expensive of them can
+ * be looked up.
+ */
+public class CostAccounting {
+    /**
+     * The totals of one keyword
+     */
+    private static class KeywordCost {
+        long requests;
+        long cpuNanos;
+        long allocatedBytes;
+        LinkedHashMap<String, long[]> phases = new LinkedHashMap<String, long[]>();
+    }
+
+    private TreeMap<String, KeywordCost> _keywords = new TreeMap<String, KeywordCost>();
+    private RequestCost[] _recent;
+    // The position in _recent for the next request
+    private int _next;
+
+    /**
+     * Initializer
+     *
+     * @param history The number of recent requests to keep
+     */
+    public CostAccounting(int history) {
+        _recent = new RequestCost[Math.max(history, 1)];
+    }
+
+    /**
+     * Add a request that has been processed
+     */
+    public synchronized void record(RequestCost cost) {
+        KeywordCost total = _keywords.get(cost.getKeyword());
+        if (total == null) {
+            total = new KeywordCost();
+            _keywords.put(cost.getKeyword(), total);
+        }
+        total.requests++;
+        total.cpuNanos += cost.getCpuNanos();
+        total.allocatedBytes += cost.getAllocatedBytes();
+        for (Map.Entry<String, long[]> phase : cost.getPhases().entrySet()) {
+            long[] phaseTotal = total.phases.get(phase.getKey());
+            if (phaseTotal == null) {
+                phaseTotal = new long[2];
+                total.phases.put(phase.getKey(), phaseTotal);
+            }
+            phaseTotal[0] += phase.getValue()[0];
+            phaseTotal[1] += phase.getValue()[1];
+        }
+
+        _recent[_next] = cost;
+        _next = (_next + 1) % _recent.length;
+    }
+
+    /**
+     * Describe the totals per keyword, and the recent requests that
+     * used the most processor time:
+     *
+     * <XTSTCosts recent="1000">
+     *   <Keyword name="foo" requests="120" cpuMs="5400.2" allocatedKB="812345">
+     *     <Phase name="parse" cpuMs="1200.5" allocatedKB="201100"/>
+     *     ...
+     *   </Keyword>
+     *   <Request keyword="foo" ...>, see RequestCost
+     * </XTSTCosts>
+     *
+     * @param count The number of requests to describe
+     */
+    public synchronized ArrayList<String> describe(int count) {
+        ArrayList<RequestCost> recent = new ArrayList<RequestCost>();
+        for (RequestCost cost : _recent) {
+            if (cost != null) {
+                recent.add(cost);
+            }
+        }
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("<XTSTCosts recent=\"" + recent.size() + "\">");
+        for (Map.Entry<String, KeywordCost> entry : _keywords.entrySet()) {
+            KeywordCost total = entry.getValue();
+            lines.add("  <Keyword name=\"" + entry.getKey() + "\"" +
+                      " requests=\"" + total.requests + "\"" +
+                      RequestCost.costAttributes(total.cpuNanos, total.allocatedBytes) + ">");
+            lines.addAll(RequestCost.describePhases("    ", total.phases));
+            lines.add("  </Keyword>");
+        }
+
+        Collections.sort(recent, new Comparator<RequestCost>() {
+            public int compare(RequestCost a, RequestCost b) {
+                return Long.compare(b.getCpuNanos(), a.getCpuNanos());
+            }
+        });
+        for (int i = 0; i < count && i < recent.size(); i++) {
+            lines.addAll(recent.get(i).describe("  "));
+        }
+        lines.add("</XTSTCosts>");
+        return lines;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+
+/**
+ * Cache of the documents that stylesheets load with document() or
+ * doc(), shared by all handlers
+ *
+ * Saxon only keeps the documents a transformation loads for that
+ * transformation, so lookup files (such as code lists) would be read
+ * and parsed again for every document. This cache is set as the
+ * URIResolver of every transformation; it parses local files once,
+ * into trees of the shared Saxon configuration, and returns the same
+ * tree to every transformation that asks for them (the trees are
+ * never modified). Other URIs are left to Saxon.
+ *
+ * Documents are keyed by their absolute (normalized) URI, so that
+ * finding one in the cache does not touch the file system; the same
+ * file reached through different URIs (e.g. through a symbolic link)
+ * is kept once per URI.
+ *
+ * The trees are kept as long as they fit in the memory budget; when
+ * it is exceeded, the documents that were used least recently are
+ * dropped. A document that is larger than the budget on its own is
+ * not kept at all. A document that has been modified since it was
+ * read is dropped by checkModified(), which every handler calls when
+ * it checks its own files.
+ *
+ * Two transformations that need a document that is not in the cache
+ * yet may both parse it; the first tree to be added is kept.
+ */
+public class DocumentCache implements URIResolver {
+    private static final DocumentCache _shared = new DocumentCache();
+
+    private long _budget = 64L * 1024 * 1024;
+    private long _used;
+    // In order of use, least recently used first
+    private LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long _hits;
+    private long _misses;
+
+    /**
+     * A parsed document
+     */
+    private static class Entry {
+        NodeInfo tree;
+        File file;
+        long modified;
+        long size;
+    }
+
+    private DocumentCache() {
+    }
+
+    /**
+     * Return the cache used by all handlers
+     */
+    public static DocumentCache getShared() {
+        return _shared;
+    }
+
+    /**
+     * Set the (estimated) memory the cached documents may use; 0
+     * disables the cache
+     *
+     * @param bytes The budget in bytes
+     */
+    public synchronized void setBudget(long bytes) {
+        _budget = bytes;
+        evict();
+    }
+
+    /**
+     * Resolve the URI of a document loaded by a stylesheet, see
+     * URIResolver
+     *
+     * @return The cached tree, or null to let Saxon load the document
+     */
+    public Source resolve(String href, String base) throws TransformerException {
+        URI uri = localUri(href, base);
+        if (uri == null) {
+            return null;
+        }
+        String key = uri.toString();
+        synchronized (this) {
+            if (_budget <= 0) {
+                return null;
+            }
+            Entry entry = _entries.get(key);
+            if (entry != null) {
+                _hits++;
+                return entry.tree;
+            }
+            _misses++;
+        }
+
+        File file = new File(uri);
+        Entry entry = new Entry();
+        entry.file = file;
+        entry.modified = file.lastModified();
+        try {
+            entry.tree = ArtifactRegistry.getShared().getProcessor().newDocumentBuilder().build(file).getUnderlyingNode();
+        } catch (net.sf.saxon.s9api.SaxonApiException sae) {
+            throw new TransformerException(sae.getMessage(), sae);
+        }
+        entry.size = estimateSize(entry.tree, file);
+
+        synchronized (this) {
+            Entry existing = _entries.get(key);
+            if (existing != null) {
+                return existing.tree;
+            }
+            if (entry.size <= _budget) {
+                _entries.put(key, entry);
+                _used += entry.size;
+                evict();
+            } else {
+                System.out.println("Document " + file + " (about " + entry.size / 1024 + " KB) is too large for the document cache");
+            }
+        }
+        return entry.tree;
+    }
+
+    /**
+     * Return the absolute, normalized URI of the document if it is a
+     * local file (one that new File(uri) accepts), or null otherwise;
+     * this only parses the URI, it does not access the file
+     */
+    private static URI localUri(String href, String base) {
+        try {
+            URI uri = base == null || base.length() == 0 ? new URI(href) : new URI(base).resolve(href);
+            uri = uri.normalize();
+            if (!"file".equals(uri.getScheme()) || uri.isOpaque() || uri.getAuthority() != null ||
+                uri.getFragment() != null || uri.getQuery() != null ||
+                uri.getPath() == null || uri.getPath().length() == 0) {
+                return null;
+            }
+            return uri;
+        } catch (URISyntaxException use) {
+            return null;
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * Estimate the memory used by a tree; for tiny trees from their
+     * node, attribute and text counts, otherwise from the file size
+     */
+    private static long estimateSize(NodeInfo tree, File file) {
+        if (tree instanceof TinyDocumentImpl) {
+            TinyTree tiny = ((TinyDocumentImpl) tree).getTree();
+            long size = tiny.getNumberOfNodes() * 24L +
+                        tiny.getNumberOfNamespaces() * 8L +
+                        tiny.getCharacterBuffer().length() * 2L;
+            CharSequence[] values = tiny.getAttributeValueArray();
+            for (int i = 0; i < tiny.getNumberOfAttributes(); i++) {
+                size += 16 + 48 + values[i].length() * 2L;
+            }
+            return size;
+        }
+        return file.length() * 10;
+    }
+
+    /**
+     * Drop the least recently used documents until the rest fit in the
+     * budget
+     */
+    private void evict() {
+        Iterator<Entry> entries = _entries.values().iterator();
+        while (_used > _budget && entries.hasNext()) {
+            Entry entry = entries.next();
+            entries.remove();
+            _used -= entry.size;
+        }
+    }
+
+    /**
+     * Drop the documents whose files have been modified (or removed)
+     * since they were read
+     */
+    public synchronized void checkModified() {
+        Iterator<Entry> entries = _entries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.file.lastModified() != entry.modified) {
+                System.out.println("Document " + entry.file + " has been modified, dropped from the document cache");
+                entries.remove();
+                _used -= entry.size;
+            }
+        }
+    }
+
+    /**
+     * Describe the cache as an xml element:
+     *
+     * <DocumentCache documents="3" usedKB="20480" budgetKB="65536" hits="1200" misses="3"/>
+     */
+    public synchronized String describe() {
+        return "<DocumentCache documents=\"" + _entries.size() + "\"" +
+               " usedKB=\"" + _used / 1024 + "\"" +
+               " budgetKB=\"" + _budget / 1024 + "\"" +
+               " hits=\"" + _hits + "\"" +
+               " misses=\"" + _misses + "\"/>";
+    }
+}
@@ -24,15 +24,25 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import javax.xml.validation.*;
 import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 /**
  * XSLT and XSD document handle
  */
 
 public class DocumentHandler {
-    XSLTTransformer transformer;
+    // Requests are handled by several threads; the transformer and
+    // schema are replaced as a whole when files are reloaded
+    volatile XSLTTransformer transformer;
     // We keep track of the loaded files, and their last modified time
     // To our 'list' of files is a LinkedHashmap with the file path as
     // keys, and the mtime as values
@@ -44,9 +54,25 @@ public class DocumentHandler {
     // By default, check every 5 seconds
     long checkEveryMilliseconds = 5000;
     LinkedHashMap<String, Long> XSDFiles;
-    Validator XSDValidator = null;
+    // Validators are not thread-safe, so we keep the compiled schema
+    // and create a new validator for every document
+    volatile Schema XSDSchema = null;
     private String _name;
     private String _description;
+    // Sample documents to run through the handler before it is used,
+    // and before reloaded files are used
+    private String _keyword = "";
+    private ArrayList<File> _warmupFiles = new ArrayList<File>();
+    private int _warmupIterations = 0;
+    // Set while a thread reloads modified files
+    private boolean _reloading = false;
+    // Scheduling settings, see FairScheduler
+    private int _weight = 1;
+    private int _maxConcurrent = 0;
+    private int _reserved = 0;
+
+    private net.sf.saxon.om.TreeModel _treeModel = net.sf.saxon.om.TreeModel.TINY_TREE;
+    private boolean _lineNumbering = true;
 
     /**
      * Initializer
@@ -62,7 +88,9 @@ public class DocumentHandler {
         XSLTFiles.put(XSLTFileName, new Long(0));
         loadXSLT();
         XSDFiles = new LinkedHashMap<String, Long>();
-        XSDFiles.put(xsdFileName, new Long(0));
+        if (xsdFileName != null) {
+            XSDFiles.put(xsdFileName, new Long(0));
+        }
         loadXSD();
     }
 
@@ -82,7 +110,9 @@ public class DocumentHandler {
         XSLTFiles.put(XSLTFileName, new Long(0));
         loadXSLT();
         XSDFiles = new LinkedHashMap<String, Long>();
-        XSDFiles.put(xsdFileName, new Long(0));
+        if (xsdFileName != null) {
+            XSDFiles.put(xsdFileName, new Long(0));
+        }
         loadXSD();
     }
 
@@ -145,45 +175,53 @@ public class DocumentHandler {
             modifyChecked = System.currentTimeMillis();
             XSLTFiles.put(fname, new Long(xsltModified));
         }
-        transformer = new XSLTTransformer(XSLTFiles.keySet());
+        XSLTTransformer old = transformer;
+        XSLTTransformer loaded = new XSLTTransformer(XSLTFiles.keySet());
+        loaded.setTreeOptions(_treeModel, _lineNumbering);
+        // On a reload, warm the new stylesheets up while requests still
+        // use the old ones
+        warmUp(loaded, XSDSchema);
+        transformer = loaded;
+        // Requests that are still running keep their reference to the
+        // old transformer, releasing it only drops it from the registry
+        if (old != null) {
+            old.release();
+        }
         System.out.println("Loaded XSLT files");
     }
 
 
-    private StreamSource filenameToSource(String filename) throws FileNotFoundException {
-        File f = new File(filename);
-        InputStream fstream = new FileInputStream(f);
-        StreamSource sstream = new StreamSource(fstream, f.getAbsolutePath());
-        return sstream;
-    }
-
     /**
      * Load an XSD file
+     *
+     * The schema is compiled through the ArtifactRegistry, so that
+     * handlers with the same set of XSD files share one compiled schema
      */
     private void loadXSD() {
         try {
             System.out.println("Loading XSD file, if any");
+            Schema old = XSDSchema;
             if (XSDFiles == null || XSDFiles.size() == 0) {
-                XSDValidator = null;
+                XSDSchema = null;
                 System.out.println("No XSD files set");
             } else {
                 System.out.println("Loading XSD file: " + XSDFiles.toString());
-                SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-                ArrayList<StreamSource> streamSources = new ArrayList<StreamSource>();
                 for (String xsdFileName : XSDFiles.keySet()) {
-                  streamSources.add(filenameToSource(xsdFileName));
                   long xsdModified = new File(xsdFileName).lastModified();
                   XSDFiles.put(xsdFileName, new Long(xsdModified));
                 }
-                StreamSource[] sources = new StreamSource[XSDFiles.size()];
-                streamSources.toArray(sources);
-                Schema schema = schemaFactory.newSchema(sources);
-                //Schema schema = schemaFactory.newSchema(new File(XSDFile));
-                XSDValidator = schema.newValidator();
+                Schema loaded = ArtifactRegistry.getShared().acquireSchema(XSDFiles.keySet());
+                if (transformer != null) {
+                    warmUp(transformer, loaded);
+                }
+                XSDSchema = loaded;
                 System.out.println("Loaded XSD files " + XSDFiles.toString());
             }
-        } catch (FileNotFoundException fxfe) {
-            System.out.println("Error reading XSD File: " + fxfe);
+            if (old != null) {
+                ArtifactRegistry.getShared().release(old);
+            }
+        } catch (IOException ioe) {
+            System.out.println("Error reading XSD File: " + ioe);
         } catch (SAXException saxe) {
             System.out.println("Error reading XSD File: " + saxe);
         }
@@ -193,13 +231,25 @@ public class DocumentHandler {
      * Check whether the XSLT file has been modified since it was
      * loaded. If so, reload it. Check at most once every CHECK_EVERY
      * milliseconds.
-     * TODO: CURRENTLY DISABLED
+     *
+     * Only one thread reloads; requests that come in meanwhile do not
+     * wait for it, and keep using the current files until the new
+     * ones have been loaded and warmed up.
      */
     public void checkModified() {
         //System.out.println("[XX] checkModified called");
         // Don't check *every* time; check at most once every 5 seconds
         long now = System.currentTimeMillis();
-        if (now > modifyChecked + checkEveryMilliseconds) {
+        synchronized (this) {
+            if (_reloading || now <= modifyChecked + checkEveryMilliseconds) {
+                return;
+            }
+            _reloading = true;
+        }
+        try {
+            // The documents the stylesheets load are shared by all
+            // handlers, and checked along with the handler's own files
+            DocumentCache.getShared().checkModified();
             for (Map.Entry<String, Long> entry : XSLTFiles.entrySet()) {
                 long modified = new File(entry.getKey()).lastModified();
                 if (modified > entry.getValue()) {
@@ -217,19 +267,199 @@ public class DocumentHandler {
                 }
             }
             modifyChecked = now;
+        } finally {
+            synchronized (this) {
+                _reloading = false;
+            }
+        }
+    }
+
+    /**
+     * Parse a document into a tree for the transformer, validating it
+     * against the XSD (if any) in the same pass
+     *
+     * The input is consumed as it is parsed, so it can be read straight
+     * from a connection, and a document that is invalid is rejected as
+     * soon as the error is encountered.
+     *
+     * @param input The document to parse
+     * @param transformer The transformer that the tree will be passed
+     *        to (the current one from getTransformer(), which is
+     *        replaced when the stylesheets are reloaded)
+     * @return The document tree, to be passed to the transformer's
+     *         transformTree()
+     * @throws SAXException if the document is not well-formed, or not
+     *         valid according to the XSD
+     * @throws TransformerException if the tree cannot be built
+     */
+    public Source parse(InputSource input, XSLTTransformer transformer) throws SAXException, IOException, TransformerException {
+        return parse(input, transformer, XSDSchema);
+    }
+
+    private Source parse(InputSource input, XSLTTransformer transformer, Schema schema) throws SAXException, IOException, TransformerException {
+        net.sf.saxon.s9api.BuildingContentHandler builder = transformer.newTreeBuilder();
+        ContentHandler contentHandler = builder;
+        if (schema != null) {
+            // Validate the events as they come in, but build the tree
+            // from the original events (without default values added
+            // by the validator)
+            contentHandler = new TeeContentHandler(schema.newValidatorHandler(), builder);
+        }
+
+        XMLReader reader;
+        try {
+            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+            parserFactory.setNamespaceAware(true);
+            reader = parserFactory.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException pce) {
+            throw new SAXException(pce);
+        }
+        reader.setContentHandler(contentHandler);
+        if (contentHandler instanceof org.xml.sax.ext.LexicalHandler) {
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler", contentHandler);
+        }
+        reader.parse(input);
+        try {
+            return builder.getDocumentNode().getUnderlyingNode();
+        } catch (net.sf.saxon.s9api.SaxonApiException sae) {
+            throw new TransformerException(sae.getMessage(), sae);
+        }
+    }
+
+    /**
+     * Set how the documents for this handler are scheduled, see
+     * FairScheduler
+     *
+     * @param weight The share of the capacity, relative to others
+     * @param maxConcurrent The maximum number of documents processed
+     *        at the same time (0 for no maximum)
+     * @param reserved The number of slots kept free for this handler
+     */
+    public void setScheduling(int weight, int maxConcurrent, int reserved) {
+        _weight = weight;
+        _maxConcurrent = maxConcurrent;
+        _reserved = reserved;
+    }
+
+    public int getWeight() {
+        return _weight;
+    }
+
+    public int getMaxConcurrent() {
+        return _maxConcurrent;
+    }
+
+    public int getReserved() {
+        return _reserved;
+    }
+
+    /**
+     * Set how the documents for this handler are parsed, see
+     * XSLTTransformer.setTreeOptions()
+     *
+     * @param treeModel The Saxon tree model to build
+     * @param lineNumbering Whether to keep the line numbers of the nodes
+     */
+    public void setTreeOptions(net.sf.saxon.om.TreeModel treeModel, boolean lineNumbering) {
+        _treeModel = treeModel;
+        _lineNumbering = lineNumbering;
+        transformer.setTreeOptions(treeModel, lineNumbering);
+    }
+
+    /**
+     * Set the sample documents to warm the handler up with
+     *
+     * @param keyword The keyword of the handler, for the report
+     * @param files The documents
+     * @param iterations The number of times to process all of them
+     */
+    public void setWarmup(String keyword, ArrayList<File> files, int iterations) {
+        _keyword = keyword;
+        _warmupFiles = files;
+        _warmupIterations = iterations;
+    }
+
+    /**
+     * Process the warmup documents (if any), so that the JIT compiler
+     * and Saxon's lazily initialized structures are warmed up before
+     * the handler gets real requests. The results are discarded.
+     * Documents that fail are reported, but do not stop the warmup.
+     */
+    public void warmUp() {
+        warmUp(transformer, XSDSchema);
+    }
+
+    /**
+     * Warm up the given stylesheets and schema, which may not be in
+     * use yet
+     */
+    private void warmUp(XSLTTransformer current, Schema schema) {
+        if (_warmupFiles.isEmpty() || _warmupIterations <= 0) {
+            return;
+        }
+        OutputStream discard = new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        long start = System.currentTimeMillis();
+        long first = 0;
+        long last = 0;
+        for (int i = 0; i < _warmupIterations; i++) {
+            long iterationStart = System.currentTimeMillis();
+            for (File file : _warmupFiles) {
+                try {
+                    MappedDocument document = new MappedDocument(file);
+                    Source tree = parse(SAXSource.sourceToInputSource(document.newSource()), current, schema);
+                    current.transformTree(tree, discard, XSLTTransformer.OUTPUT_FULL);
+                } catch (Exception exc) {
+                    // Report every failing document only once
+                    if (i == 0) {
+                        System.out.println("Error: warmup document " + file + " failed: " + exc);
+                    }
+                }
+            }
+            last = System.currentTimeMillis() - iterationStart;
+            if (i == 0) {
+                first = last;
+            }
+        }
+        System.out.println("Warmed up handler '" + _keyword + "': " + _warmupFiles.size() + " documents, " + _warmupIterations +
+                           " iterations in " + (System.currentTimeMillis() - start) + " ms" +
+                           " (first iteration " + first + " ms, last " + last + " ms)");
+    }
+
+    /**
+     * Release the compiled stylesheets and schema; called when the
+     * handler has been replaced, it must not be used for new requests
+     * after this
+     */
+    public synchronized void release() {
+        transformer.release();
+        if (XSDSchema != null) {
+            ArtifactRegistry.getShared().release(XSDSchema);
         }
     }
 
     public boolean hasXSDValidator() {
-        return (XSDValidator != null);
+        return (XSDSchema != null);
     }
     
     public boolean hasTransformer() {
         return (transformer != null);
     }
 
+    /**
+     * Return a new validator for the current schema (or null if there
+     * is no schema)
+     */
     public Validator getXSDValidator() {
-        return XSDValidator;
+        Schema schema = XSDSchema;
+        if (schema == null) {
+            return null;
+        }
+        return schema.newValidator();
     }
 
     public XSLTTransformer getTransformer() {
@@ -9,15 +9,39 @@ import org.xml.sax.SAXException;
 import java.io.*;
 
 class DocumentHandlerManager {
+    // Number of times the warmup documents are processed, if the
+    // xtst.properties file does not specify warmup_iterations
+    private static final int DEFAULT_WARMUP_ITERATIONS = 5;
+
     // todo: make private
-    public Map<String, DocumentHandler> _handlers;
+    // (replaced as a whole on reload, while other threads are reading it)
+    public volatile Map<String, DocumentHandler> _handlers;
     private boolean _multimode;
     private int _checkEverySeconds;
     private String _baseDirectory;
     private String _xsltFile;
     private String _xsdFile;
+    // In multimode, only load the handlers for the keywords of this
+    // shard (if _ring is not null)
+    private ShardRing _ring;
+    private int _shard;
+    // In multimode, only load the handler for this keyword (if not null)
+    private String _onlyKeyword;
 
     public DocumentHandlerManager(boolean multimode, String xsltFileOrDirectory, String xsdFile, int checkEverySeconds) throws IOException, SAXException {
+        this(multimode, xsltFileOrDirectory, xsdFile, checkEverySeconds, null, 0);
+    }
+
+    /**
+     * Initializer for a server that is one of several behind a proxy
+     *
+     * @param ring The ring the keywords are divided over (null to load
+     *        all handlers)
+     * @param shard The shard of the ring to load the handlers for
+     */
+    public DocumentHandlerManager(boolean multimode, String xsltFileOrDirectory, String xsdFile, int checkEverySeconds, ShardRing ring, int shard) throws IOException, SAXException {
+        _ring = ring;
+        _shard = shard;
         _checkEverySeconds = checkEverySeconds;
         _multimode = multimode;
         if (multimode) {
@@ -30,22 +54,60 @@ class DocumentHandlerManager {
         load();
     }
 
+    /**
+     * Initializer for a batch run in multimode, which only loads the
+     * handler for the given keyword
+     *
+     * @param directory The directory to read the handlers from
+     * @param keyword The keyword of the handler to load
+     */
+    public DocumentHandlerManager(String directory, String keyword, int checkEverySeconds) throws IOException, SAXException {
+        _onlyKeyword = keyword;
+        _checkEverySeconds = checkEverySeconds;
+        _multimode = true;
+        _baseDirectory = directory;
+
+        load();
+    }
+
     private synchronized void replaceHandlers(Map<String, DocumentHandler> new_handlers) {
+        Map<String, DocumentHandler> old_handlers = _handlers;
         _handlers = new_handlers;
-        System.out.println("[XX] handlers replaced, new keywords:");
-        for (String key : _handlers.keySet()) {
-            System.out.println("   [XX] '" + key + "'");
+        // The new handlers have acquired their stylesheets and schemas
+        // already, so anything that did not change is shared with them
+        if (old_handlers != null) {
+            for (DocumentHandler handler : old_handlers.values()) {
+                handler.release();
+            }
         }
+        System.out.println("Handlers replaced, keywords: " + _handlers.keySet());
     }
 
-    public void load() throws IOException, SAXException {
-        Map new_handlers = new HashMap<String, DocumentHandler>();
-        if (_multimode) {
-            readDirectories(_baseDirectory, new_handlers);
-        } else {
-            new_handlers.put("default", new DocumentHandler(_xsltFile, _xsdFile, _checkEverySeconds));
+    public synchronized void load() throws IOException, SAXException {
+        Map<String, DocumentHandler> new_handlers = new HashMap<String, DocumentHandler>();
+        boolean loaded = false;
+        try {
+            if (_multimode) {
+                readDirectories(_baseDirectory, new_handlers);
+            } else {
+                new_handlers.put("default", new DocumentHandler(_xsltFile, _xsdFile, _checkEverySeconds));
+            }
+            // Warm the new handlers up before they get any requests; on a
+            // reload, the old handlers keep serving in the meantime
+            for (DocumentHandler handler : new_handlers.values()) {
+                handler.warmUp();
+            }
+            replaceHandlers(new_handlers);
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                // The handlers that were built before the failure
+                // have acquired their stylesheets and schemas
+                for (DocumentHandler handler : new_handlers.values()) {
+                    handler.release();
+                }
+            }
         }
-        replaceHandlers(new_handlers);
     }
 
     public int getDocumentHandlerCount() {
@@ -64,7 +126,7 @@ class DocumentHandlerManager {
         }
     }
 
-    private void readXTSTProperties(File propertiesFile, Map handlers) throws IOException, SAXException {
+    private void readXTSTProperties(File propertiesFile, Map<String, DocumentHandler> handlers) throws IOException, SAXException {
         System.out.println("Read properties from " + propertiesFile);
         InputStream in = new FileInputStream(propertiesFile);
         Properties properties = new Properties();
@@ -81,6 +143,13 @@ class DocumentHandlerManager {
             // TODO: should not exit
             System.exit(1);
         }
+        if (_onlyKeyword != null && !_onlyKeyword.equals(keyword)) {
+            return;
+        }
+        if (_ring != null && _ring.shardFor(keyword) != _shard) {
+            System.out.println("Skipping keyword '" + keyword + "', it is not in shard " + _shard);
+            return;
+        }
 
         ArrayList<String> xslFileStrings = new ArrayList<String>();
         if (properties.getProperty("xsl_file") != null) {
@@ -123,10 +192,85 @@ class DocumentHandlerManager {
         System.out.println("Loading files for keyword '" + keyword +"'");
         //DocumentHandler handler = new DocumentHandler(xsltFile.toString(), xsdFileStrings, _checkEverySeconds, name, description);
         DocumentHandler handler = new DocumentHandler(xslFileStrings, xsdFileStrings, _checkEverySeconds, name, description);
+        handler.setWarmup(keyword, readWarmupFiles(properties, propertiesFile),
+                          readIntProperty(properties, "warmup_iterations", DEFAULT_WARMUP_ITERATIONS, propertiesFile));
+        handler.setScheduling(readIntProperty(properties, "weight", 1, propertiesFile),
+                              readIntProperty(properties, "max_concurrent", 0, propertiesFile),
+                              readIntProperty(properties, "reserved", 0, propertiesFile));
+        handler.setTreeOptions(readTreeModelProperty(properties, propertiesFile),
+                               readBooleanProperty(properties, "line_numbering", true, propertiesFile));
         handlers.put(keyword, handler);
     }
 
-    private void checkDirectory(File dir, Map handlers) throws IOException, SAXException  {
+    /**
+     * Return the documents listed by the warmup_file and warmup_dir
+     * properties (all files in the directory, not its subdirectories)
+     */
+    private ArrayList<File> readWarmupFiles(Properties properties, File propertiesFile) {
+        ArrayList<File> files = new ArrayList<File>();
+        if (properties.getProperty("warmup_file") != null) {
+            files.add(getFile(properties.getProperty("warmup_file"), propertiesFile));
+        }
+        if (properties.getProperty("warmup_dir") != null) {
+            File dir = getFile(properties.getProperty("warmup_dir"), propertiesFile);
+            String[] entries = dir.list();
+            if (entries == null) {
+                System.out.println("Error: warmup_dir " + dir + " is not a directory");
+            } else {
+                java.util.Arrays.sort(entries);
+                for (String filename : entries) {
+                    File entry = new File(dir, filename);
+                    if (entry.isFile()) {
+                        files.add(entry);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private int readIntProperty(Properties properties, String name, int defaultValue, File propertiesFile) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            System.out.println("Error: bad " + name + " value in " + propertiesFile + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private boolean readBooleanProperty(Properties properties, String name, boolean defaultValue, File propertiesFile) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        value = value.trim();
+        if ("true".equals(value) || "on".equals(value)) {
+            return true;
+        } else if ("false".equals(value) || "off".equals(value)) {
+            return false;
+        }
+        System.out.println("Error: bad " + name + " value in " + propertiesFile + ", using " + defaultValue);
+        return defaultValue;
+    }
+
+    private net.sf.saxon.om.TreeModel readTreeModelProperty(Properties properties, File propertiesFile) {
+        String value = properties.getProperty("tree_model");
+        if (value == null) {
+            return net.sf.saxon.om.TreeModel.TINY_TREE;
+        }
+        net.sf.saxon.om.TreeModel model = XSLTTransformer.treeModelFor(value.trim());
+        if (model == null) {
+            System.out.println("Error: bad tree_model value in " + propertiesFile + ", using tiny");
+            return net.sf.saxon.om.TreeModel.TINY_TREE;
+        }
+        return model;
+    }
+
+    private void checkDirectory(File dir, Map<String, DocumentHandler> handlers) throws IOException, SAXException  {
         String[] subDirs = dir.list();
         for(String filename : subDirs){
             File dirEntry = new File(dir, filename);
@@ -140,7 +284,7 @@ class DocumentHandlerManager {
         }
     }
 
-    private void readDirectories(String directory, Map handlers) throws IOException, SAXException {
+    private void readDirectories(String directory, Map<String, DocumentHandler> handlers) throws IOException, SAXException {
         File maindir = new File(directory);
         if (maindir.isDirectory()) {
             checkDirectory(maindir, handlers);
@@ -153,4 +297,23 @@ class DocumentHandlerManager {
         return _handlers;
     }
 
+    /**
+     * Describe the currently active handlers, as the lines of an
+     * XTSTHandlers xml element (see Server for the format)
+     */
+    public ArrayList<String> describeHandlers() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("<XTSTHandlers>");
+        for (Map.Entry<String, DocumentHandler> entry : getHandlers().entrySet()) {
+            DocumentHandler handler = entry.getValue();
+            lines.add("  <Handler>");
+            lines.add("    <Name>" + handler.getName() + "</Name>");
+            lines.add("    <Description>" + handler.getDescription() + "</Description>");
+            lines.add("    <Keyword>" + entry.getKey() + "</Keyword>");
+            lines.add("  </Handler>");
+        }
+        lines.add("</XTSTHandlers>");
+        return lines;
+    }
+
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Weighted fair scheduling of documents over the keywords
+ *
+ * A fixed number of documents (the capacity) is processed at the same
+ * time. Requests that find no free slot wait in a queue per keyword,
+ * and free slots go to the keywords in proportion to their weight
+ * (stride scheduling), so that a burst of requests for one keyword
+ * mostly delays that keyword itself.
+ *
+ * In xtst.properties, a handler can set:
+ *
+ * weight: its share of the capacity, relative to the other keywords
+ *         that have requests waiting (defaults to 1)
+ * max_concurrent: the maximum number of its documents that are
+ *                 processed at the same time (defaults to no limit)
+ * reserved: the number of slots that are kept free for it, and that
+ *           other keywords cannot use (defaults to 0)
+ *
+ * The scheduler also keeps the queue depths and wait times per
+ * keyword, see describeStats().
+ *
+ * With an adaptive limit (see ConcurrencyLimit), the number of shared
+ * slots that are used follows the measured processing times (reserved
+ * slots can always be used), and requests are turned away with
+ * "overloaded, retry" when the queue is too long for them to get a
+ * turn within the wait time.
+ */
+public class FairScheduler {
+    private int _capacity;
+    private long _timeoutMilliseconds;
+    private DocumentHandlerManager _manager;
+
+    // The handlers the current configuration was read from
+    private Map<String, DocumentHandler> _configuredFrom;
+    private LinkedHashMap<String, KeywordState> _keywords;
+    // The slots that are not reserved for any keyword
+    private int _shared;
+    private int _sharedInUse;
+    // The pass of the last keyword that got a shared slot
+    private double _virtualTime;
+    // The adaptive limit, if any
+    private ConcurrencyLimit _limit;
+
+    /**
+     * A request waiting for, or holding, a slot
+     */
+    public class Ticket {
+        private KeywordState _state;
+        private long _enqueued;
+        private long _started;
+        private boolean _granted;
+        private boolean _shared;
+
+        private Ticket(KeywordState state) {
+            _state = state;
+            _enqueued = System.currentTimeMillis();
+        }
+
+        /**
+         * Release the slot, when the document has been processed
+         */
+        public void release() {
+            FairScheduler.this.release(this);
+        }
+    }
+
+    private static class KeywordState {
+        String keyword;
+        int weight = 1;
+        int maxConcurrent = 0;
+        int reserved = 0;
+
+        LinkedList<Ticket> queue = new LinkedList<Ticket>();
+        int reservedInUse;
+        int running;
+        double pass;
+
+        long completed;
+        long rejected;
+        long shed;
+        long totalWaitMilliseconds;
+        long maxWaitMilliseconds;
+
+        KeywordState(String keyword) {
+            this.keyword = keyword;
+        }
+
+        boolean belowMaximum() {
+            return maxConcurrent <= 0 || running < maxConcurrent;
+        }
+    }
+
+    /**
+     * Initializer
+     *
+     * @param capacity The number of documents processed at the same time
+     * @param timeoutSeconds How long a request may wait for a slot
+     * @param manager The handler manager, to read the settings of the
+     *        handlers from
+     */
+    public FairScheduler(int capacity, int timeoutSeconds, DocumentHandlerManager manager) {
+        _capacity = capacity;
+        _timeoutMilliseconds = timeoutSeconds * 1000L;
+        _manager = manager;
+        _keywords = new LinkedHashMap<String, KeywordState>();
+        _shared = capacity;
+    }
+
+    /**
+     * Let the number of documents processed at the same time adapt to
+     * the measured processing times; the capacity is then the maximum
+     *
+     * @param limit The adaptive limit
+     */
+    public synchronized void setLimit(ConcurrencyLimit limit) {
+        _limit = limit;
+    }
+
+    /**
+     * Wait for a slot to process a document for the given keyword
+     *
+     * @param keyword The keyword of the handler
+     * @return The ticket, which must be released when done
+     * @throws AdmissionController.RejectedException if the wait time
+     *         has been exceeded, or if the server is overloaded
+     */
+    public Ticket acquire(String keyword) throws AdmissionController.RejectedException, InterruptedException {
+        long deadline = System.currentTimeMillis() + _timeoutMilliseconds;
+        synchronized (this) {
+            configure();
+            KeywordState state = getState(keyword);
+            if (_limit != null && state.reservedInUse >= state.reserved &&
+                _limit.shouldShed(queued(), _timeoutMilliseconds)) {
+                state.shed++;
+                throw new AdmissionController.RejectedException("overloaded, retry", false);
+            }
+            if (state.queue.isEmpty()) {
+                // Don't let a keyword that has been idle catch up on
+                // the others
+                state.pass = Math.max(state.pass, _virtualTime);
+            }
+            Ticket ticket = new Ticket(state);
+            state.queue.addLast(ticket);
+            dispatch();
+            try {
+                while (!ticket._granted) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        state.queue.remove(ticket);
+                        state.rejected++;
+                        throw new AdmissionController.RejectedException("server busy, retry later", false);
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException ie) {
+                if (ticket._granted) {
+                    release(ticket);
+                } else {
+                    state.queue.remove(ticket);
+                }
+                throw ie;
+            }
+            return ticket;
+        }
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (!ticket._granted) {
+            return;
+        }
+        ticket._granted = false;
+        KeywordState state = ticket._state;
+        if (_limit != null) {
+            _limit.sample(state.keyword, System.currentTimeMillis() - ticket._started, _sharedInUse, queued());
+        }
+        state.running--;
+        state.completed++;
+        if (ticket._shared) {
+            _sharedInUse--;
+        } else {
+            state.reservedInUse--;
+        }
+        dispatch();
+    }
+
+    private int queued() {
+        int queued = 0;
+        for (KeywordState state : _keywords.values()) {
+            queued += state.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Return the number of shared slots that may be used; an adaptive
+     * limit only applies to the shared slots, reserved slots can
+     * always be used
+     */
+    private int sharedLimit() {
+        if (_limit == null) {
+            return _shared;
+        }
+        return Math.min(_shared, _limit.getLimit());
+    }
+
+    private KeywordState getState(String keyword) {
+        KeywordState state = _keywords.get(keyword);
+        if (state == null) {
+            state = new KeywordState(keyword);
+            _keywords.put(keyword, state);
+        }
+        return state;
+    }
+
+    /**
+     * Read the settings of the handlers, if they have been reloaded
+     * since the last time
+     */
+    private void configure() {
+        Map<String, DocumentHandler> handlers = _manager.getHandlers();
+        if (handlers == _configuredFrom) {
+            return;
+        }
+        _configuredFrom = handlers;
+        int reserved = 0;
+        for (KeywordState state : _keywords.values()) {
+            state.weight = 1;
+            state.maxConcurrent = 0;
+            state.reserved = 0;
+        }
+        for (Map.Entry<String, DocumentHandler> entry : handlers.entrySet()) {
+            DocumentHandler handler = entry.getValue();
+            KeywordState state = getState(entry.getKey());
+            state.weight = Math.max(handler.getWeight(), 1);
+            state.maxConcurrent = handler.getMaxConcurrent();
+            state.reserved = Math.min(handler.getReserved(), _capacity - reserved);
+            if (state.reserved < handler.getReserved()) {
+                System.out.println("Error: cannot reserve " + handler.getReserved() + " slots for '" +
+                                   entry.getKey() + "', only " + state.reserved + " left of " + _capacity);
+            }
+            reserved += state.reserved;
+        }
+        _shared = _capacity - reserved;
+    }
+
+    /**
+     * Give free slots to waiting requests
+     */
+    private void dispatch() {
+        boolean granted = false;
+        // First the requests that can use the slots reserved for them
+        for (KeywordState state : _keywords.values()) {
+            while (!state.queue.isEmpty() && state.reservedInUse < state.reserved && state.belowMaximum()) {
+                grant(state, false);
+                granted = true;
+            }
+        }
+        // Then the shared slots, to the waiting keyword with the
+        // lowest pass; every slot a keyword gets advances its pass
+        // by the inverse of its weight
+        int sharedLimit = sharedLimit();
+        while (_sharedInUse < sharedLimit) {
+            KeywordState next = null;
+            for (KeywordState state : _keywords.values()) {
+                if (!state.queue.isEmpty() && state.belowMaximum() &&
+                    (next == null || state.pass < next.pass)) {
+                    next = state;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            _virtualTime = next.pass;
+            next.pass += 1.0 / next.weight;
+            grant(next, true);
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private void grant(KeywordState state, boolean shared) {
+        Ticket ticket = state.queue.removeFirst();
+        ticket._granted = true;
+        ticket._shared = shared;
+        ticket._started = System.currentTimeMillis();
+        state.running++;
+        if (shared) {
+            _sharedInUse++;
+        } else {
+            state.reservedInUse++;
+        }
+        long waited = System.currentTimeMillis() - ticket._enqueued;
+        state.totalWaitMilliseconds += waited;
+        state.maxWaitMilliseconds = Math.max(state.maxWaitMilliseconds, waited);
+    }
+
+    /**
+     * Describe the scheduler state per keyword, as the lines of an
+     * XTSTStats xml element:
+     *
+     * <XTSTStats capacity="8" shared="6" sharedInUse="2">
+     *   <Limit .../> (with an adaptive limit, see ConcurrencyLimit)
+     *   <DocumentCache .../> (see DocumentCache)
+     *   <Keyword name="foo" weight="1" maxConcurrent="0" reserved="2"
+     *            running="1" queued="0" completed="10" rejected="0"
+     *            shed="0" averageWaitMs="3" maxWaitMs="25"/>
+     * </XTSTStats>
+     */
+    public synchronized ArrayList<String> describeStats() {
+        configure();
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("<XTSTStats capacity=\"" + _capacity + "\" shared=\"" + _shared +
+                  "\" sharedInUse=\"" + _sharedInUse + "\">");
+        if (_limit != null) {
+            lines.add("  " + _limit.describe());
+        }
+        lines.add("  " + DocumentCache.getShared().describe());
+        for (KeywordState state : _keywords.values()) {
+            long granted = state.completed + state.running;
+            lines.add("  <Keyword name=\"" + state.keyword + "\"" +
+                      " weight=\"" + state.weight + "\"" +
+                      " maxConcurrent=\"" + state.maxConcurrent + "\"" +
+                      " reserved=\"" + state.reserved + "\"" +
+                      " running=\"" + state.running + "\"" +
+                      " queued=\"" + state.queue.size() + "\"" +
+                      " completed=\"" + state.completed + "\"" +
+                      " rejected=\"" + state.rejected + "\"" +
+                      " shed=\"" + state.shed + "\"" +
+                      " averageWaitMs=\"" + (granted > 0 ? state.totalWaitMilliseconds / granted : 0) + "\"" +
+                      " maxWaitMs=\"" + state.maxWaitMilliseconds + "\"/>");
+        }
+        lines.add("</XTSTStats>");
+        return lines;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import javax.xml.transform.Source;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP/1.1 front end for the document handlers
+ *
+ * Runs alongside the length-prefixed protocol of Server, using the same
+ * DocumentHandlerManager and AdmissionController. Connections are kept
+ * alive between requests.
+ *
+ * POST /validate/<keyword> (or POST /validate when not in multimode)
+ *     Validate and transform the request body, which is parsed while it
+ *     is being received. A body without a Content-Length reserves the
+ *     memory for the largest document the budget allows, and is
+ *     rejected when it gets larger than that. Once the body has been
+ *     parsed, the request waits for its turn in the scheduler; the
+ *     result is collected in a ResultSpool, so that the turn ends
+ *     before it is sent (with status 200). Errors are sent as a plain
+ *     text body containing the same 'Error: <message>' as in the
+ *     other protocol, with status 404 (unknown keyword), 413 (document
+ *     too large), 422 (document invalid), 503 (server busy) or 500.
+ *     A request body with Content-Encoding gzip or deflate is
+ *     decompressed, and the result is compressed if the client
+ *     accepts gzip or deflate.
+ *     The query parameter output=<full|compact|summary|failures>
+ *     selects the form of the result, see XSLTTransformer.
+ *
+ * GET /handlers
+ *     Return the active handlers, in the same format as the
+ *     list-handlers command
+ *
+ * GET /stats
+ *     Return the scheduler statistics, in the same format as the stats
+ *     command
+ *
+ * GET /top (or GET /top?count=<count>)
+ *     Return the processor time and memory used per keyword and by the
+ *     most expensive recent requests, in the same format as the top
+ *     command
+ */
+public class HttpFrontend {
+    private HttpServer _server;
+    private DocumentHandlerManager _manager;
+    private AdmissionController _admission;
+    private FairScheduler _scheduler;
+    private CostAccounting _costs;
+    private boolean _multimode;
+
+    /**
+     * Initializer
+     *
+     * @param host The hostname or IP address to listen on
+     * @param port The port number to listen on
+     * @param multimode_on Whether the handlers are selected by keyword
+     * @param manager The document handler manager
+     * @param connections The number of requests to handle concurrently
+     * @param admission The admission controller for incoming documents
+     * @param scheduler The scheduler that decides which documents are
+     *        processed when
+     * @param costs Where the processor time and memory used by the
+     *        requests are kept
+     */
+    public HttpFrontend(String host, int port, boolean multimode_on, DocumentHandlerManager manager, int connections, AdmissionController admission, FairScheduler scheduler, CostAccounting costs) throws IOException {
+        _multimode = multimode_on;
+        _manager = manager;
+        _admission = admission;
+        _scheduler = scheduler;
+        _costs = costs;
+        InetAddress addr = InetAddress.getByName(host);
+        _server = HttpServer.create(new InetSocketAddress(addr, port), 100);
+        _server.setExecutor(Executors.newFixedThreadPool(connections));
+        _server.createContext("/validate", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleValidate(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        _server.createContext("/handlers", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleHandlers(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        _server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleStats(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        _server.createContext("/top", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleTop(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        System.out.println("Listening for HTTP on port: " + port);
+    }
+
+    public void start() {
+        _server.start();
+    }
+
+    private void sendError(HttpExchange exchange, int code, String status) throws IOException {
+        byte[] body = (status + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        if (code == 503) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Return the codec to compress the response with, based on the
+     * Accept-Encoding header
+     */
+    private String responseCompression(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept != null) {
+            for (String encoding : accept.split(",")) {
+                String[] parts = encoding.split(";");
+                String codec = parts[0].trim();
+                if ((codec.equals(Compression.GZIP) || codec.equals(Compression.DEFLATE)) && !isRefused(parts)) {
+                    return codec;
+                }
+            }
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * Return true if the parameters of an Accept-Encoding entry have
+     * q=0, which means the client does not accept that coding
+     */
+    private static boolean isRefused(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) <= 0;
+                } catch (NumberFormatException nfe) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void handleValidate(HttpExchange exchange) throws IOException {
+        // The result depends on Accept-Encoding, caches must not serve
+        // it to clients that asked for another encoding
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendError(exchange, 405, "Error: use POST");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String keyword = "default";
+        DocumentHandler handler;
+        if (_multimode) {
+            if (!path.startsWith("/validate/") || path.length() <= 10) {
+                sendError(exchange, 404, "Error: validate needs a keyword when running in multimode");
+                return;
+            }
+            keyword = path.substring(10);
+            handler = _manager.getDocumentHandler(keyword);
+            if (handler == null) {
+                System.out.println("Request for unknown keyword '" + keyword + "'");
+                sendError(exchange, 404, "Error: unknown keyword '" + keyword + "'");
+                return;
+            }
+        } else {
+            handler = _manager.getDocumentHandler("default");
+        }
+        handler.checkModified();
+
+        String output = XSLTTransformer.OUTPUT_FULL;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("output=")) {
+                    output = parameter.substring(7);
+                }
+            }
+            if (!XSLTTransformer.isOutputMode(output)) {
+                sendError(exchange, 400, "Error: unknown output mode '" + output + "'");
+                return;
+            }
+        }
+
+        final String codec;
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (contentEncoding == null || contentEncoding.equals("identity")) {
+            codec = Compression.NONE;
+        } else if (Compression.isSupported(contentEncoding)) {
+            codec = contentEncoding;
+        } else {
+            sendError(exchange, 415, "Error: unsupported compression '" + contentEncoding + "'");
+            return;
+        }
+
+        // Reserve memory before reading the document
+        int size = -1;
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                size = Integer.parseInt(contentLength);
+            } catch (NumberFormatException nfe) {
+                size = 0;
+            }
+            if (size <= 0) {
+                sendError(exchange, 400, "Error: bad Content-Length");
+                return;
+            }
+        }
+        AdmissionController.Reservation reservation = null;
+        RequestCost cost = null;
+        boolean transformed = false;
+        try {
+            cost = new RequestCost(keyword, size);
+            // Parse (and validate) the body while it is being received
+            InputStream body = exchange.getRequestBody();
+            if (size < 0) {
+                // Without a length, reserve for the largest document
+                // there is room for, and stop reading at that
+                reservation = _admission.reserve(_admission.getLargestDocumentSize());
+                LimitedInputStream limited = new LimitedInputStream(Compression.wrapInput(codec, body), reservation.getDocumentSize());
+                transformed = validateDocument(exchange, keyword, handler, limited, output, cost);
+                cost.setSize(limited.getRead());
+            } else if (codec.equals(Compression.NONE)) {
+                reservation = _admission.reserve(size);
+                transformed = validateDocument(exchange, keyword, handler, body, output, cost);
+            } else {
+                // Decompressing stops at the size memory was reserved for
+                reservation = _admission.reserveCompressed(size);
+                body = new LimitedInputStream(Compression.wrapInput(codec, body), reservation.getDocumentSize());
+                transformed = validateDocument(exchange, keyword, handler, body, output, cost);
+            }
+        } catch (AdmissionController.RejectedException re) {
+            String status = "Error: " + re.getMessage();
+            System.out.println(status);
+            sendError(exchange, re.isTooLarge() ? 413 : 503, status);
+        } catch (InterruptedException ie) {
+            sendError(exchange, 503, "Error: interrupted");
+        } finally {
+            if (reservation != null) {
+                reservation.release();
+            }
+            if (cost != null) {
+                cost.setSucceeded(transformed);
+                _costs.record(cost);
+            }
+        }
+    }
+
+    /**
+     * Validate and transform a document, and send the result
+     *
+     * @return true if the document was transformed
+     * @throws AdmissionController.RejectedException if the request
+     *         did not get a turn to be processed
+     */
+    private boolean validateDocument(HttpExchange exchange, String keyword, DocumentHandler handler, InputStream xml, String output, RequestCost cost) throws IOException, AdmissionController.RejectedException, InterruptedException {
+        // Parse the document, validating it against the schema (if any)
+        // in the same pass
+        XSLTTransformer transformer = handler.getTransformer();
+        Source tree;
+        try {
+            tree = handler.parse(new InputSource(xml), transformer);
+        } catch (SAXException saxe) {
+            String status;
+            if (handler.hasXSDValidator()) {
+                status = "Error: invalid " + saxe.toString();
+            } else {
+                status = "Error processing document: " + saxe.toString();
+            }
+            System.out.println(status);
+            sendError(exchange, 422, status);
+            return false;
+        } catch (LimitedInputStream.TooLargeException tle) {
+            String status = "Error: " + tle.getMessage();
+            System.out.println(status);
+            sendError(exchange, 413, status);
+            return false;
+        } catch (Exception exc) {
+            String status = "Error processing document: " + exc.toString();
+            System.out.println(status);
+            sendError(exchange, 500, status);
+            return false;
+        } finally {
+            // Also count the cost of documents that fail to parse (the
+            // error reply is counted with it)
+            cost.mark("parse");
+        }
+
+        // Collect the (compressed) result, and only send it once the
+        // turn to process the document has ended. It is not streamed
+        // while transforming: a slow client would then hold on to the
+        // turn, and a transformation that fails halfway could no longer
+        // be reported, since the status 200 would already have been
+        // sent. Spooling also gives the response a Content-Length. The
+        // spool is written to a file when it gets large, see ResultSpool.
+        String codec = responseCompression(exchange);
+        ResultSpool result = new ResultSpool();
+        try {
+            String status = null;
+            FairScheduler.Ticket ticket = _scheduler.acquire(keyword);
+            try {
+                OutputStream resultStream = Compression.wrapOutput(codec, result);
+                transformer.transformTree(tree, resultStream, output, cost);
+                resultStream.close();
+            } catch (Exception exc) {
+                status = "Error processing document: " + exc.toString();
+                System.out.println(status);
+            } finally {
+                ticket.release();
+            }
+            if (status != null) {
+                sendError(exchange, 500, status);
+                return false;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+            if (!codec.equals(Compression.NONE)) {
+                exchange.getResponseHeaders().set("Content-Encoding", codec);
+            }
+            // A length of -1 means there is no body (0 would mean chunked)
+            try {
+                exchange.sendResponseHeaders(200, result.size() > 0 ? result.size() : -1);
+                result.sendTo(exchange.getResponseBody());
+            } finally {
+                cost.mark("send");
+            }
+            return true;
+        } finally {
+            result.release();
+        }
+    }
+
+    private void handleHandlers(HttpExchange exchange) throws IOException {
+        sendLines(exchange, _manager.describeHandlers());
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        sendLines(exchange, _scheduler.describeStats());
+    }
+
+    private void handleTop(HttpExchange exchange) throws IOException {
+        String command = "top";
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("count=")) {
+            command = "top " + query.substring(6);
+        }
+        int count = Server.parseTopCount(command);
+        if (count < 0) {
+            sendError(exchange, 400, "Error: top needs a positive number");
+            return;
+        }
+        sendLines(exchange, _costs.describe(count));
+    }
+
+    private void sendLines(HttpExchange exchange, java.util.List<String> lines) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            sendError(exchange, 405, "Error: use GET");
+            return;
+        }
+        StringBuilder result = new StringBuilder();
+        for (String line : lines) {
+            result.append(line).append("\n");
+        }
+        byte[] body = result.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fails when more than a given number of bytes is read from a stream
+ *
+ * Used to hold a decompressed document to the size that memory was
+ * reserved for, since the compressed size says little about it.
+ */
+class LimitedInputStream extends FilterInputStream {
+    /**
+     * Thrown when more than the limit is read
+     */
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private long _limit;
+    private long _remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        _limit = limit;
+        _remaining = limit;
+    }
+
+    /**
+     * Return the number of bytes read so far
+     */
+    long getRead() {
+        return _limit - _remaining;
+    }
+
+    private void count(long read) throws IOException {
+        _remaining -= read;
+        if (_remaining < 0) {
+            throw new TooLargeException("document too large (more than " + _limit + " bytes)");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -30,6 +30,13 @@ public class LineNumbers extends ExtensionFunctionDefinition {
         "http://tjeb.nl/xml/extensions/", "linenumbers");
   }
 
+  @Override
+  public boolean dependsOnFocus() {
+    // Without this, Saxon may evaluate the call once, outside of the
+    // loop over the nodes it is used in
+    return true;
+  }
+
   @Override
   public ExtensionFunctionCall makeCallExpression() {
     return new ExtensionFunctionCall() {
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Settings for the listening socket(s) of a server, and for the
+ * connections it accepts
+ *
+ * With more than one acceptor, every acceptor thread gets its own
+ * listening socket bound to the same port with SO_REUSEPORT (on
+ * platforms that support it, such as Linux), so that the kernel
+ * spreads new connections over them. Where SO_REUSEPORT is not
+ * supported, the acceptors share one listening socket.
+ *
+ * The server can also listen on a UNIX domain socket, for clients on
+ * the same host; who may connect to it is determined by the
+ * permissions of the socket file.
+ */
+public class ListenerSettings {
+    /** The number of threads accepting connections */
+    int acceptors = 1;
+    /** The maximum number of pending connections per listening socket */
+    int backlog = 100;
+    /** Whether to disable Nagle's algorithm on accepted connections */
+    boolean tcpNoDelay = false;
+    /** Socket receive buffer size in bytes (0 for the system default) */
+    int receiveBufferSize = 0;
+    /** Socket send buffer size in bytes (0 for the system default) */
+    int sendBufferSize = 0;
+    /** The path of the UNIX domain socket to listen on (null for none) */
+    String unixSocket = null;
+    /** The permissions of the UNIX domain socket file, in octal */
+    String unixSocketMode = "600";
+
+    /**
+     * Open the listening socket(s)
+     *
+     * @param host The hostname or IP address to listen on
+     * @param port The port number to listen on
+     * @return One listening socket for every acceptor; these may all be
+     *         the same socket
+     * @throws IOException if a socket cannot be bound
+     */
+    ArrayList<ServerSocket> bind(String host, int port) throws IOException {
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getByName(host), port);
+        ArrayList<ServerSocket> sockets = new ArrayList<ServerSocket>();
+        ServerSocket first = new ServerSocket();
+        boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (acceptors > 1 && !reusePort) {
+            System.out.println("SO_REUSEPORT is not supported, " + acceptors + " acceptors share one socket");
+        }
+        for (int i = 0; i < acceptors; i++) {
+            if (i > 0 && !reusePort) {
+                sockets.add(first);
+                continue;
+            }
+            ServerSocket socket = i == 0 ? first : new ServerSocket();
+            if (reusePort) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+            }
+            // The receive buffer size must be set before binding, for
+            // it to be used for the TCP window of accepted connections
+            if (receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+            socket.bind(addr, backlog);
+            sockets.add(socket);
+        }
+        return sockets;
+    }
+
+    /**
+     * Open the listening UNIX domain socket, and give its file the
+     * configured permissions; the file is removed when the JVM exits
+     *
+     * A socket left behind by an earlier server that no longer runs is
+     * replaced, but any other file is not. The socket is bound in a
+     * private directory, and only moved into place once it has its
+     * permissions, so that no one can connect in the meantime.
+     *
+     * @return The listening channel
+     * @throws IOException if the socket cannot be bound, if the path
+     *         exists and is not a socket, or if another server is
+     *         listening on it
+     */
+    ServerSocketChannel bindUnix() throws IOException {
+        final Path path = Paths.get(unixSocket).toAbsolutePath();
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (!isSocket(path)) {
+                throw new IOException(path + " exists and is not a socket");
+            }
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+                throw new IOException("another server is listening on " + path);
+            } catch (java.net.ConnectException ce) {
+                Files.delete(path);
+            }
+        }
+        // In the same directory, so that the move is a rename; the
+        // name is kept short, as the length of socket paths is limited
+        Path directory = Files.createTempDirectory(path.getParent(), ".xtst",
+                PosixFilePermissions.asFileAttribute(permissions("700")));
+        Path bound = directory.resolve("s");
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(bound), backlog);
+            Files.setPosixFilePermissions(bound, permissions(unixSocketMode));
+            Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            channel.close();
+            Files.deleteIfExists(bound);
+            throw ioe;
+        } finally {
+            Files.delete(directory);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ioe) {
+                    // nothing left to do
+                }
+            }
+        });
+        return channel;
+    }
+
+    /**
+     * Return true if the file is a UNIX domain socket (not following
+     * symbolic links)
+     */
+    private static boolean isSocket(Path path) throws IOException {
+        // The file type bits of st_mode, and the type of a socket
+        final int S_IFMT = 0170000;
+        final int S_IFSOCK = 0140000;
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException uoe) {
+            // Without the unix view, all that is known is that it is
+            // not a regular file, directory or symbolic link
+            return Files.readAttributes(path, BasicFileAttributes.class,
+                                    LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * Return the permissions for an octal mode, such as 660
+     *
+     * @throws IllegalArgumentException if the mode is not valid
+     */
+    static Set<PosixFilePermission> permissions(String mode) {
+        if (!mode.matches("[0-7]{3}")) {
+            throw new IllegalArgumentException("bad mode, must be 3 octal digits: " + mode);
+        }
+        // In the order of the bits, from 0400 down to 0001
+        PosixFilePermission[] bits = {
+            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+            PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+            PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE
+        };
+        int value = Integer.parseInt(mode, 8);
+        HashSet<PosixFilePermission> permissions = new HashSet<PosixFilePermission>();
+        for (int i = 0; i < bits.length; i++) {
+            if ((value & (0400 >> i)) != 0) {
+                permissions.add(bits[i]);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Apply the settings to an accepted connection
+     *
+     * @param socket The accepted connection
+     * @throws SocketException if an option cannot be set
+     */
+    void configure(Socket socket) throws SocketException {
+        if (tcpNoDelay) {
+            socket.setTcpNoDelay(true);
+        }
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+
+    public String toString() {
+        return acceptors + " acceptors, backlog " + backlog +
+               (tcpNoDelay ? ", TCP_NODELAY" : "") +
+               (receiveBufferSize > 0 ? ", receive buffer " + receiveBufferSize : "") +
+               (sendBufferSize > 0 ? ", send buffer " + sendBufferSize : "");
+    }
+}
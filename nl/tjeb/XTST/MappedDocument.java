@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A document read from a memory-mapped file
+ *
+ * The file is mapped once; every source returned reads the mapping
+ * from the start, so validation and transformation do not go through
+ * the file system again. Files that are too large to be mapped in one
+ * buffer (2 GB or more) are read from the file for every source.
+ */
+public class MappedDocument {
+    private File _file;
+    private String _systemId;
+    private MappedByteBuffer _buffer;
+
+    /**
+     * Initializer
+     *
+     * @param file The file to map
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedDocument(File file) throws IOException {
+        _file = file;
+        _systemId = file.toURI().toString();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() < Integer.MAX_VALUE) {
+                // The mapping stays valid after the channel is closed
+                _buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the size of the document in bytes
+     */
+    public long getSize() {
+        return _file.length();
+    }
+
+    /**
+     * Return a new Source that reads the document from the start
+     *
+     * @return The document source
+     * @throws IOException if the document data cannot be read
+     */
+    public Source newSource() throws IOException {
+        if (_buffer == null) {
+            return new StreamSource(_file);
+        }
+        return new StreamSource(new ByteBufferInputStream(_buffer.duplicate()), _systemId);
+    }
+
+    /**
+     * InputStream that reads the remaining data in a ByteBuffer
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer _data;
+
+        ByteBufferInputStream(ByteBuffer data) {
+            _data = data;
+        }
+
+        @Override
+        public int read() {
+            if (!_data.hasRemaining()) {
+                return -1;
+            }
+            return _data.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!_data.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, _data.remaining());
+            _data.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return _data.remaining();
+        }
+    }
+}
@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Proxy that divides the handlers over several XTST servers
+ *
+ * The proxy speaks protocol 3 (see Server) to its clients. The
+ * keywords are divided over a number of shards with a ShardRing, and
+ * each shard is served by one or more backend servers that were
+ * started with --shard, so that they only load the handlers of their
+ * own shard. A validate (or profile) command is passed on to a backend
+ * of the shard of its keyword; the document and the result are relayed
+ * as they are (compressed or not).
+ *
+ * list-handlers returns the handlers of all shards, reload reloads
+ * all backends, and stats and top return the responses of all
+ * backends.
+ *
+ * The proxy keeps a small pool of idle connections to every backend
+ * (with the keepalive connection option set), so that requests do not
+ * have to wait for a new connection. An idle connection takes up a
+ * connection thread of the backend, so the pool must be smaller than
+ * the number of connection threads of the backends.
+ *
+ * Every backend is checked periodically with a list-handlers command.
+ * Backends that fail the check, or that cannot be connected to, are
+ * not used until they pass the check again; requests then go to the
+ * next backend of the same shard, if there is one.
+ */
+public class Proxy extends Thread {
+    // Time a backend may take to connect, to answer the handshake, or
+    // to answer a health check
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 5000;
+    // Pooled connections are closed by the backend after being idle
+    // for Server.KEEPALIVE_TIMEOUT_MILLISECONDS, don't use them that long
+    private static final long POOL_IDLE_MILLISECONDS = Server.KEEPALIVE_TIMEOUT_MILLISECONDS / 2;
+
+    private ArrayList<ServerSocket> _sockets;
+    private ListenerSettings _listener;
+    private ExecutorService _workers;
+    private ShardRing _ring;
+    // For every shard, the backends that serve it
+    private ArrayList<ArrayList<Backend>> _shards;
+    private int _healthCheckSeconds;
+
+    /**
+     * A connection to a backend server, on which the keepalive option
+     * has been set
+     */
+    private static class BackendConnection {
+        Backend backend;
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        // Whether this connection has been used before
+        boolean reused;
+        long idleSince;
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * A backend server, with its pool of idle connections
+     */
+    private static class Backend {
+        String host;
+        int port;
+        volatile boolean healthy = true;
+        private LinkedList<BackendConnection> _idle = new LinkedList<BackendConnection>();
+        private int _maxIdle;
+
+        Backend(String address, int maxIdle) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("backend address must be host:port: " + address);
+            }
+            host = address.substring(0, colon);
+            port = Integer.parseInt(address.substring(colon + 1));
+            _maxIdle = maxIdle;
+        }
+
+        /**
+         * Return an idle connection from the pool, or a new one
+         */
+        BackendConnection take() throws IOException {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                while (!_idle.isEmpty()) {
+                    BackendConnection connection = _idle.removeFirst();
+                    if (now - connection.idleSince < POOL_IDLE_MILLISECONDS) {
+                        connection.reused = true;
+                        return connection;
+                    }
+                    connection.close();
+                }
+            }
+            return connect();
+        }
+
+        /**
+         * Put a connection that is in a clean state back in the pool
+         */
+        void giveBack(BackendConnection connection) {
+            synchronized (this) {
+                if (_idle.size() < _maxIdle) {
+                    connection.idleSince = System.currentTimeMillis();
+                    _idle.addFirst(connection);
+                    return;
+                }
+            }
+            connection.close();
+        }
+
+        /**
+         * Close all idle connections (e.g. because the backend has
+         * been restarted)
+         */
+        synchronized void clearIdle() {
+            for (BackendConnection connection : _idle) {
+                connection.close();
+            }
+            _idle.clear();
+        }
+
+        private BackendConnection connect() throws IOException {
+            BackendConnection connection = new BackendConnection();
+            connection.backend = this;
+            connection.socket = new Socket();
+            try {
+                connection.socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLISECONDS);
+                connection.socket.setSoTimeout(CONNECT_TIMEOUT_MILLISECONDS);
+                connection.socket.setTcpNoDelay(true);
+                connection.in = new DataInputStream(new BufferedInputStream(connection.socket.getInputStream()));
+                connection.out = new DataOutputStream(new BufferedOutputStream(connection.socket.getOutputStream()));
+                String banner = Server.readDataString(connection.in);
+                if (!banner.contains("protocol version: " + Server.PROTOCOL_VERSION)) {
+                    throw new IOException("unsupported protocol: " + banner.trim());
+                }
+                Server.sendDataString("set keepalive on", connection.out);
+                connection.out.flush();
+                String status = Server.readDataString(connection.in);
+                if (!status.startsWith("Success")) {
+                    throw new IOException(status);
+                }
+                // Transformations may take any amount of time
+                connection.socket.setSoTimeout(0);
+            } catch (IOException ioe) {
+                connection.close();
+                throw ioe;
+            }
+            return connection;
+        }
+
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Initializer
+     *
+     * @param host The hostname or IP address to listen on
+     * @param port The port number to listen on
+     * @param shardBackends For every shard, the address (host:port) of
+     *        the backend that serves it, or several comma-separated
+     *        addresses of backends that serve the same shard
+     * @param connections The number of client connections to handle
+     *        concurrently
+     * @param poolSize The maximum number of idle connections to keep
+     *        to every backend
+     * @param healthCheckSeconds Check the backends every X seconds
+     * @param listener The settings for the listening socket(s)
+     */
+    public Proxy(String host, int port, List<String> shardBackends, int connections, int poolSize, int healthCheckSeconds, ListenerSettings listener) throws IOException {
+        _ring = new ShardRing(shardBackends.size());
+        _shards = new ArrayList<ArrayList<Backend>>();
+        for (String addresses : shardBackends) {
+            ArrayList<Backend> backends = new ArrayList<Backend>();
+            for (String address : addresses.split(",")) {
+                backends.add(new Backend(address.trim(), poolSize));
+            }
+            System.out.println("Shard " + _shards.size() + ": " + backends);
+            _shards.add(backends);
+        }
+        _healthCheckSeconds = healthCheckSeconds;
+
+        _listener = listener;
+        _sockets = listener.bind(host, port);
+        System.out.println("Proxy listening on port: " + port + " (" + listener + ")");
+        _workers = Executors.newFixedThreadPool(connections);
+    }
+
+    /**
+     * Run the proxy
+     */
+    public void run() {
+        Thread healthChecker = new Thread() {
+            public void run() {
+                while (true) {
+                    checkBackends();
+                    try {
+                        Thread.sleep(_healthCheckSeconds * 1000L);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        };
+        healthChecker.setDaemon(true);
+        healthChecker.start();
+
+        ArrayList<Thread> acceptors = new ArrayList<Thread>();
+        for (final ServerSocket socket : _sockets) {
+            Thread acceptor = new Thread() {
+                public void run() {
+                    accept(socket);
+                }
+            };
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+        _workers.shutdown();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketTimeoutException s) {
+                System.out.println("Socket timed out!");
+                break;
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                System.out.println("Error: accepting connection: " + e);
+                continue;
+            }
+            // A failure on one connection (e.g. a reset by the client)
+            // must not stop this thread
+            try {
+                _listener.configure(client);
+                _workers.execute(new Runnable() {
+                    public void run() {
+                        handleConnection(client);
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Error: setting up connection: " + e);
+                try {
+                    client.close();
+                } catch (IOException ioe) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Check all backends with a list-handlers command; this uses a
+     * pooled connection if there is one, since a new connection has to
+     * wait for a free connection thread of the backend
+     */
+    private void checkBackends() {
+        for (ArrayList<Backend> backends : _shards) {
+            for (Backend backend : backends) {
+                try {
+                    BackendConnection connection = backend.take();
+                    try {
+                        connection.socket.setSoTimeout(CONNECT_TIMEOUT_MILLISECONDS);
+                        readHandlers(connection, new ArrayList<String>());
+                        connection.socket.setSoTimeout(0);
+                    } catch (IOException ioe) {
+                        connection.close();
+                        if (connection.reused) {
+                            // Probably closed by the backend; check it
+                            // on a new connection in the next round
+                            backend.clearIdle();
+                            continue;
+                        }
+                        throw ioe;
+                    }
+                    backend.giveBack(connection);
+                    if (!backend.healthy) {
+                        System.out.println("Backend " + backend + " is up");
+                        backend.healthy = true;
+                    }
+                } catch (IOException ioe) {
+                    markDown(backend, ioe);
+                }
+            }
+        }
+    }
+
+    private void markDown(Backend backend, IOException ioe) {
+        if (backend.healthy) {
+            System.out.println("Backend " + backend + " is down: " + ioe);
+            backend.healthy = false;
+        }
+        backend.clearIdle();
+    }
+
+    /**
+     * Return a connection to a healthy backend of the given shard, or
+     * null if there is none
+     */
+    private BackendConnection connect(int shard) {
+        for (Backend backend : _shards.get(shard)) {
+            if (!backend.healthy) {
+                continue;
+            }
+            try {
+                return backend.take();
+            } catch (IOException ioe) {
+                markDown(backend, ioe);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Handle one client connection, called from a worker thread
+     *
+     * @param client The connected socket, closed when done
+     */
+    private void handleConnection(Socket client) {
+        try {
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            ConnectionOptions options = new ConnectionOptions();
+
+            Server.sendDataString("XSLT Transformer server version " +
+                                  Server.VERSION + ", protocol version: " +
+                                  Server.PROTOCOL_VERSION + "\n", out);
+            try {
+                String command = Server.readDataString(in);
+                while (handleCommand(command, in, out, options) && options.keepalive) {
+                    client.setSoTimeout(Server.KEEPALIVE_TIMEOUT_MILLISECONDS);
+                    try {
+                        command = Server.readDataString(in);
+                    } catch (IOException ioe) {
+                        // Closed by the client, or idle for too long
+                        return;
+                    }
+                    client.setSoTimeout(0);
+                }
+            } catch (IOException ioe) {
+                System.out.println("XTST proxy error: " + ioe);
+                Server.sendDataString("Error: " + ioe + "\n", out);
+            }
+        } catch (IOException ioe) {
+            System.out.println("Could not send back result: " + ioe);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ioe) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Handle one command, preceded by any number of set commands; the
+     * options are checked here, and passed on with every validate
+     * command
+     *
+     * @return true if the command succeeded, false if an error was
+     *         sent (after which the connection is closed)
+     */
+    private boolean handleCommand(String command, DataInputStream in, DataOutputStream out, ConnectionOptions options) throws IOException {
+        while (command.startsWith("set ")) {
+            String error = options.set(command);
+            if (error != null) {
+                Server.sendDataString("Error: " + error, out);
+                return false;
+            }
+            Server.sendDataString("Success: " + command.substring(4), out);
+            command = Server.readDataString(in);
+        }
+
+        if (command.startsWith("validate") || command.startsWith("profile")) {
+            int space = command.indexOf(' ');
+            String keyword = space >= 0 ? command.substring(space + 1) : "";
+            return relayValidate(_ring.shardFor(keyword), command, in, out, options);
+        } else if (command.equals("reload")) {
+            return reloadAll(out);
+        } else if (command.equals("stats")) {
+            sendFromAll("stats", "XTSTProxyStats", out);
+            Server.sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else if (command.equals("top") || command.startsWith("top ")) {
+            if (Server.parseTopCount(command) < 0) {
+                Server.sendDataString("Error: top needs a positive number", out);
+                return false;
+            }
+            sendFromAll(command, "XTSTProxyTop", out);
+            Server.sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else if (command.equals("list-handlers")) {
+            ArrayList<String> lines = new ArrayList<String>();
+            for (int shard = 0; shard < _shards.size(); shard++) {
+                BackendConnection connection = connect(shard);
+                if (connection == null) {
+                    System.out.println("Error: no backend available for shard " + shard + ", its handlers are not listed");
+                    continue;
+                }
+                try {
+                    readHandlers(connection, lines);
+                    connection.backend.giveBack(connection);
+                } catch (IOException ioe) {
+                    connection.close();
+                    System.out.println("Error: listing handlers of " + connection.backend + " failed: " + ioe);
+                }
+            }
+            Server.sendDataString("<XTSTHandlers>", out);
+            for (String line : lines) {
+                Server.sendDataString(line, out);
+            }
+            Server.sendDataString("</XTSTHandlers>", out);
+            Server.sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else {
+            Server.sendDataString("Error: Unknown command", out);
+            return false;
+        }
+    }
+
+    /**
+     * Send a list-handlers command on the given connection, and add
+     * the lines describing the handlers (without the enclosing
+     * XTSTHandlers element) to the given list
+     */
+    private void readHandlers(BackendConnection connection, ArrayList<String> lines) throws IOException {
+        for (String line : readResponse(connection, "list-handlers")) {
+            if (!line.equals("<XTSTHandlers>") && !line.equals("</XTSTHandlers>")) {
+                lines.add(line);
+            }
+        }
+    }
+
+    /**
+     * Send a command on the given connection, and return the lines of
+     * the response (up to XTSTResponseEnd)
+     */
+    private ArrayList<String> readResponse(BackendConnection connection, String command) throws IOException {
+        Server.sendDataString(command, connection.out);
+        connection.out.flush();
+        ArrayList<String> lines = new ArrayList<String>();
+        String line = Server.readDataString(connection.in);
+        while (!line.equals("XTSTResponseEnd")) {
+            if (line.startsWith("Error")) {
+                throw new IOException(line);
+            }
+            lines.add(line);
+            line = Server.readDataString(connection.in);
+        }
+        return lines;
+    }
+
+    /**
+     * Send the response of all (healthy) backends to the given command
+     * (stats or top), each in a Backend element:
+     *
+     * <XTSTProxyStats>
+     *   <Backend address="host:port" shard="0">
+     *     <XTSTStats ...>
+     *   </Backend>
+     * </XTSTProxyStats>
+     *
+     * @param command The command to send to the backends
+     * @param element The name of the enclosing element
+     * @param out The stream to send to
+     */
+    private void sendFromAll(String command, String element, DataOutputStream out) throws IOException {
+        Server.sendDataString("<" + element + ">", out);
+        for (int shard = 0; shard < _shards.size(); shard++) {
+            for (Backend backend : _shards.get(shard)) {
+                if (!backend.healthy) {
+                    continue;
+                }
+                BackendConnection connection = null;
+                try {
+                    connection = backend.take();
+                    ArrayList<String> lines = readResponse(connection, command);
+                    backend.giveBack(connection);
+                    Server.sendDataString("  <Backend address=\"" + backend + "\" shard=\"" + shard + "\">", out);
+                    for (String line : lines) {
+                        Server.sendDataString("    " + line, out);
+                    }
+                    Server.sendDataString("  </Backend>", out);
+                } catch (IOException ioe) {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                    System.out.println("Error: reading " + command + " of " + backend + " failed: " + ioe);
+                }
+            }
+        }
+        Server.sendDataString("</" + element + ">", out);
+    }
+
+    /**
+     * Reload the handlers of all (healthy) backends
+     */
+    private boolean reloadAll(DataOutputStream out) throws IOException {
+        int reloaded = 0;
+        for (ArrayList<Backend> backends : _shards) {
+            for (Backend backend : backends) {
+                if (!backend.healthy) {
+                    continue;
+                }
+                BackendConnection connection = null;
+                try {
+                    connection = backend.take();
+                    Server.sendDataString("reload", connection.out);
+                    connection.out.flush();
+                    String status = Server.readDataString(connection.in);
+                    if (!status.startsWith("Success")) {
+                        connection.close();
+                        Server.sendDataString("Error: reload failed on " + backend + ": " + status.trim(), out);
+                        return false;
+                    }
+                    Server.readDataString(connection.in);
+                    backend.giveBack(connection);
+                    reloaded++;
+                } catch (IOException ioe) {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                    Server.sendDataString("Error: reload failed on " + backend + ": " + ioe, out);
+                    return false;
+                }
+            }
+        }
+        Server.sendDataString("Success: handler(s) reloaded on " + reloaded + " backends", out);
+        Server.sendDataString("XTSTResponseEnd", out);
+        return true;
+    }
+
+    /**
+     * Pass a validate (or profile) command on to a backend of the given
+     * shard, and relay the document and the result
+     *
+     * @return true if the document was transformed
+     */
+    private boolean relayValidate(int shard, String command, DataInputStream in, DataOutputStream out, ConnectionOptions options) throws IOException {
+        BackendConnection connection = null;
+        String status = null;
+        // A pooled connection may have been closed by the backend in
+        // the meantime; nothing has been sent to the client yet, so
+        // try again on a new connection
+        while (status == null) {
+            connection = connect(shard);
+            if (connection == null) {
+                Server.sendDataString("Error: no backend available for shard " + shard, out);
+                return false;
+            }
+            try {
+                // The options of a pooled connection may have been set
+                // by an earlier client, so set all of them
+                Server.sendDataString("set compression " + options.compression, connection.out);
+                Server.sendDataString("set output " + options.output, connection.out);
+                Server.sendDataString(command, connection.out);
+                connection.out.flush();
+                for (int i = 0; i < 2 && status == null; i++) {
+                    String reply = Server.readDataString(connection.in);
+                    if (!reply.startsWith("Success")) {
+                        status = reply;
+                    }
+                }
+                if (status == null) {
+                    status = Server.readDataString(connection.in);
+                }
+            } catch (IOException ioe) {
+                connection.close();
+                if (connection.reused) {
+                    connection.backend.clearIdle();
+                } else {
+                    markDown(connection.backend, ioe);
+                }
+            }
+        }
+        Server.sendDataString(status, out);
+        if (!status.startsWith("Success")) {
+            connection.close();
+            return false;
+        }
+
+        try {
+            // Relay the document; if the backend rejects it before it
+            // has all of it (and closes the connection), the rest is
+            // read from the client and discarded, so that the client
+            // gets the status
+            int size = Server.readDataLength(in);
+            boolean sending = true;
+            try {
+                Server.sendDataSize(size, connection.out);
+            } catch (IOException ioe) {
+                sending = false;
+            }
+            byte[] buffer = new byte[65536];
+            int remaining = size;
+            while (remaining > 0) {
+                int count = Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, count);
+                remaining -= count;
+                if (sending) {
+                    try {
+                        connection.out.write(buffer, 0, count);
+                    } catch (IOException ioe) {
+                        sending = false;
+                    }
+                }
+            }
+            if (sending) {
+                connection.out.flush();
+            }
+
+            status = Server.readDataString(connection.in);
+            Server.sendDataString(status, out);
+            if (!status.startsWith("Success")) {
+                connection.close();
+                return false;
+            }
+            if (command.startsWith("profile")) {
+                String line;
+                do {
+                    line = Server.readDataString(connection.in);
+                    Server.sendDataString(line, out);
+                } while (!line.equals("XTSTResponseEnd"));
+            } else {
+                size = Server.readDataLength(connection.in);
+                Server.sendDataSize(size, out);
+                remaining = size;
+                while (remaining > 0) {
+                    int count = Math.min(remaining, buffer.length);
+                    connection.in.readFully(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+        } catch (IOException ioe) {
+            connection.close();
+            throw ioe;
+        }
+        connection.backend.giveBack(connection);
+        return true;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The processor time used, and the memory allocated, by one request,
+ * per phase of its processing
+ *
+ * The request is processed by one thread; every call to mark() counts
+ * the processor time and memory that thread used since the previous
+ * call for the given phase. The phases are:
+ *
+ * parse: receiving and parsing the document, and validating it
+ *        against the XSD
+ * transform:<file>: one stylesheet, including reading its output
+ * merge: merging the outputs of the stylesheets
+ * serialize: writing (and compressing) the result
+ * send: sending the result to the client
+ * wait: waiting for an identical request to be transformed, see
+ *       SingleFlight
+ *
+ * If the JVM cannot measure the processor time or allocated memory of
+ * a thread, it is counted as 0.
+ */
+public class RequestCost {
+    private static final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean _allocations;
+
+    static {
+        if (_threads.isThreadCpuTimeSupported() && !_threads.isThreadCpuTimeEnabled()) {
+            _threads.setThreadCpuTimeEnabled(true);
+        }
+        if (_threads instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean) _threads).isThreadAllocatedMemorySupported()) {
+            _allocations = (com.sun.management.ThreadMXBean) _threads;
+            _allocations.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            _allocations = null;
+        }
+    }
+
+    private String _keyword;
+    private long _started;
+    private long _size;
+    private String _hash;
+    private boolean _succeeded;
+
+    // The processor time (in nanoseconds) and allocated bytes per phase
+    private LinkedHashMap<String, long[]> _phases = new LinkedHashMap<String, long[]>();
+    private long _cpuNanos;
+    private long _allocatedBytes;
+    private long _lastCpu;
+    private long _lastAllocated;
+
+    /**
+     * Initializer, call from the thread that processes the request
+     *
+     * @param keyword The keyword of the request
+     * @param size The size of the document as received
+     */
+    public RequestCost(String keyword, long size) {
+        _keyword = keyword;
+        _size = size;
+        _started = System.currentTimeMillis();
+        _lastCpu = threadCpu();
+        _lastAllocated = threadAllocated();
+    }
+
+    private static long threadCpu() {
+        return _threads.isCurrentThreadCpuTimeSupported() ? _threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long threadAllocated() {
+        return _allocations == null ? 0 : _allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Count the processor time and memory used since the previous call
+     * (or since the request started) for the given phase
+     *
+     * @param phase The phase that has just ended
+     */
+    public void mark(String phase) {
+        long cpu = threadCpu();
+        long allocated = threadAllocated();
+        long[] phaseCost = _phases.get(phase);
+        if (phaseCost == null) {
+            phaseCost = new long[2];
+            _phases.put(phase, phaseCost);
+        }
+        phaseCost[0] += cpu - _lastCpu;
+        phaseCost[1] += allocated - _lastAllocated;
+        _cpuNanos += cpu - _lastCpu;
+        _allocatedBytes += allocated - _lastAllocated;
+        _lastCpu = cpu;
+        _lastAllocated = allocated;
+    }
+
+    /**
+     * Set the SHA-256 hash of the document, to recognize it by
+     */
+    void setHash(byte[] hash) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        _hash = hex.toString();
+    }
+
+    /**
+     * Set the size of the document, if it was not known when the
+     * request started
+     */
+    void setSize(long size) {
+        _size = size;
+    }
+
+    void setSucceeded(boolean succeeded) {
+        _succeeded = succeeded;
+    }
+
+    String getKeyword() {
+        return _keyword;
+    }
+
+    long getCpuNanos() {
+        return _cpuNanos;
+    }
+
+    long getAllocatedBytes() {
+        return _allocatedBytes;
+    }
+
+    Map<String, long[]> getPhases() {
+        return _phases;
+    }
+
+    /**
+     * Describe the request as xml elements:
+     *
+     * <Request keyword="foo" started="2017-06-01T12:00:00Z" size="12345" sha256="..." succeeded="true" cpuMs="40.2" allocatedKB="8123">
+     *   <Phase name="parse" cpuMs="10.1" allocatedKB="2011"/>
+     * </Request>
+     *
+     * @param indent The indentation of the Request element
+     */
+    ArrayList<String> describe(String indent) {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(indent + "<Request keyword=\"" + _keyword + "\"" +
+                  " started=\"" + java.time.Instant.ofEpochMilli(_started) + "\"" +
+                  " size=\"" + _size + "\"" +
+                  (_hash != null ? " sha256=\"" + _hash + "\"" : "") +
+                  " succeeded=\"" + _succeeded + "\"" +
+                  costAttributes(_cpuNanos, _allocatedBytes) + ">");
+        lines.addAll(describePhases(indent + "  ", _phases));
+        lines.add(indent + "</Request>");
+        return lines;
+    }
+
+    static ArrayList<String> describePhases(String indent, Map<String, long[]> phases) {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            lines.add(indent + "<Phase name=\"" + phase.getKey().replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;") + "\"" +
+                      costAttributes(phase.getValue()[0], phase.getValue()[1]) + "/>");
+        }
+        return lines;
+    }
+
+    static String costAttributes(long cpuNanos, long allocatedBytes) {
+        return " cpuMs=\"" + Math.round(cpuNanos / 100000.0) / 10.0 + "\"" +
+               " allocatedKB=\"" + allocatedBytes / 1024 + "\"";
+    }
+}
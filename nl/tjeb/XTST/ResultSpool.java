@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Collects a transformation result until it is complete, so that its
+ * size can be sent before it
+ *
+ * Results up to the threshold are kept in memory, in chunks taken from
+ * a pool shared by all connections. Larger results are spilled to a
+ * temporary file, which is sent with FileChannel.transferTo(), so
+ * that they never have to fit on the heap.
+ *
+ * close() only ends the writing (so that the spool can be wrapped in a
+ * compressing stream); call release() when the result has been sent.
+ */
+class ResultSpool extends OutputStream {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // The number of free chunks kept in the pool
+    private static final int MAX_POOLED_CHUNKS = 256;
+    private static final ArrayDeque<byte[]> _pool = new ArrayDeque<byte[]>();
+    private static volatile long _threshold = 1024 * 1024;
+
+    private ArrayList<byte[]> _chunks = new ArrayList<byte[]>();
+    // The number of bytes used of the last chunk
+    private int _position = CHUNK_SIZE;
+    private long _size;
+    private Path _file;
+    private FileChannel _channel;
+
+    /**
+     * Set the size above which results are spilled to a file
+     *
+     * @param bytes The threshold in bytes
+     */
+    static void setThreshold(long bytes) {
+        _threshold = bytes;
+    }
+
+    private static byte[] takeChunk() {
+        synchronized (_pool) {
+            byte[] chunk = _pool.pollFirst();
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private static void giveBack(byte[] chunk) {
+        synchronized (_pool) {
+            if (_pool.size() < MAX_POOLED_CHUNKS) {
+                _pool.addFirst(chunk);
+            }
+        }
+    }
+
+    /**
+     * Return the number of bytes written
+     */
+    long size() {
+        return _size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (_channel == null && _size + len > _threshold) {
+            spill();
+        }
+        _size += len;
+        if (_channel != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                _channel.write(buffer);
+            }
+            return;
+        }
+        while (len > 0) {
+            if (_position == CHUNK_SIZE) {
+                _chunks.add(takeChunk());
+                _position = 0;
+            }
+            int n = Math.min(len, CHUNK_SIZE - _position);
+            System.arraycopy(b, off, _chunks.get(_chunks.size() - 1), _position, n);
+            _position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Move what has been written so far to a temporary file, and write
+     * the rest there as well
+     */
+    private void spill() throws IOException {
+        _file = Files.createTempFile("xtst-result-", ".xml");
+        _channel = FileChannel.open(_file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                    StandardOpenOption.DELETE_ON_CLOSE);
+        long remaining = _size;
+        for (byte[] chunk : _chunks) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(remaining, CHUNK_SIZE));
+            remaining -= buffer.remaining();
+            while (buffer.hasRemaining()) {
+                _channel.write(buffer);
+            }
+            giveBack(chunk);
+        }
+        _chunks.clear();
+    }
+
+    /**
+     * Ends the writing; the result is kept until release()
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Send the result (without its size) to the given stream
+     *
+     * @param out The stream to send to
+     * @throws IOException if sending fails
+     */
+    void sendTo(OutputStream out) throws IOException {
+        if (_channel != null) {
+            out.flush();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            while (position < _size) {
+                position += _channel.transferTo(position, _size - position, target);
+            }
+            return;
+        }
+        long remaining = _size;
+        for (byte[] chunk : _chunks) {
+            int n = (int) Math.min(remaining, CHUNK_SIZE);
+            out.write(chunk, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Free the memory or the temporary file the result was kept in
+     */
+    void release() {
+        for (byte[] chunk : _chunks) {
+            giveBack(chunk);
+        }
+        _chunks.clear();
+        if (_channel != null) {
+            try {
+                // The file is deleted when the channel is closed
+                _channel.close();
+            } catch (IOException ioe) {
+                System.out.println("Error: cannot remove " + _file + ": " + ioe);
+            }
+            _channel = null;
+        }
+    }
+}
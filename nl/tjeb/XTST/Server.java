@@ -22,10 +22,18 @@ import java.net.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 import javax.xml.transform.stream.StreamSource;
@@ -38,6 +46,22 @@ import javax.xml.transform.stream.StreamSource;
  * client. It will transform the document, report the result, then
  * send the document back.
  *
+ * The document is parsed, and validated against the XSD, while it is
+ * being received, so an invalid document is rejected as soon as the
+ * error is encountered.
+ *
+ * Connections are accepted by one or more acceptor threads (see
+ * ListenerSettings), on a TCP port and/or a UNIX domain socket, and
+ * handled by a fixed pool of connection threads. Before a document is
+ * read, an estimate of the memory needed to process it is reserved
+ * from the AdmissionController; when the budget is exhausted requests
+ * wait for it, and they are rejected if they can never fit or have
+ * waited too long. Once the document has been received and parsed, it
+ * waits for its turn in the FairScheduler, which limits the number of
+ * documents processed at the same time and divides that capacity
+ * fairly over the keywords. The turn ends before the result is sent,
+ * so slow clients do not hold on to it.
+ *
  * Protocol (version 1):
  * Each string is sent as 4 bytes of network order data, followed by
  * the string (utf-8 encoding)
@@ -54,6 +78,9 @@ import javax.xml.transform.stream.StreamSource;
  * Protocol (version 3):
  * Each string is sent as 4 bytes of network order data, followed by
  * the string (utf-8 encoding)
+ * The xml document is passed to the parser as sent, so it may use any
+ * encoding its xml declaration specifies; the transformation result is
+ * always encoded as utf-8
  * Upon connect, the server sends a protocol version string
  * It will then read a command, which is one of:
  * validate
@@ -62,6 +89,15 @@ import javax.xml.transform.stream.StreamSource;
  * reload (reload the handler (directory))
  * list-handlers: return an xml element tree containing the currently
  *                active handlers, see below for the format
+ * stats: return an xml element tree with the queue depths and wait
+ *        times per keyword, see FairScheduler
+ * top [<count>]: return an xml element tree with the processor time and
+ *                memory used per keyword, and by the most expensive
+ *                recent requests, see CostAccounting
+ * profile [<keyword>]: like validate, but instead of the result, send
+ *                      the time spent per template of the stylesheets,
+ *                      as the lines of an xml element tree followed by
+ *                      XTSTResponseEnd, see StylesheetProfiler
  *
  * After reading the command, it will send a status message to the
  * client, either 'Success: <msg>' or 'Error: <msg>'
@@ -77,6 +113,15 @@ import javax.xml.transform.stream.StreamSource;
  * For all other commands, the server will send back an arbitrary number
  * of strings, followed by a string containing 'XTSTResponseEnd'
  *
+ * Before the command, the client may send any number of
+ * 'set <option> <value>' commands, see ConnectionOptions. The server
+ * answers each with a 'Success: <msg>' or 'Error: <msg>' status (and
+ * closes the connection on error). With 'set compression <codec>',
+ * the xml document and the transformation result are sent compressed.
+ * With 'set keepalive on', the connection is not closed after a
+ * command succeeds, and the client may send another command (again
+ * optionally preceded by set commands; the options stay in effect).
+ *
  * list-handlers format example:
  * <XTSTHandlers>
  *   <Handler>
@@ -93,28 +138,60 @@ import javax.xml.transform.stream.StreamSource;
  */
 public class Server extends Thread
 {
-    private ServerSocket serverSocket;
+    private ArrayList<ServerSocket> _sockets;
+    private ServerSocketChannel _unixSocket;
+    private ListenerSettings _listener;
     DocumentHandlerManager _manager;
+    private ExecutorService _workers;
+    private AdmissionController _admission;
+    private FairScheduler _scheduler;
+    private SingleFlight _flights;
+    private CostAccounting _costs;
 
     boolean multimode;
     static String VERSION = "1.1.0beta";
     static String PROTOCOL_VERSION = "3";
+    // How long a kept-alive connection may wait for its next command
+    static final int KEEPALIVE_TIMEOUT_MILLISECONDS = 30000;
+    // The number of requests returned by a top command without a count
+    static final int DEFAULT_TOP_COUNT = 10;
 
     /**
      * Initializer
      *
      * @param hostname The hostname or IP address to listen on
-     * @param port The port number to listen on
+     * @param port The port number to listen on, or -1 to only listen
+     *        on the UNIX domain socket of the listener settings
      * @param XSLTFileName The XSLT file to use in the transformation
      * @param xsdFileName The XSD file to validate against (may be null)
      * @param checkEverySeconds Check fro reload every X seconds
+     * @param connections The number of connections to handle concurrently
+     * @param admission The admission controller for incoming documents
+     * @param scheduler The scheduler that decides which documents are
+     *        processed when
+     * @param listener The settings for the listening socket(s)
+     * @param costs Where the processor time and memory used by the
+     *        requests are kept
      */
-    public Server(String host, int port, boolean multimode_on, DocumentHandlerManager manager) throws IOException, SAXException {
-        InetAddress addr = InetAddress.getByName(host);
-        serverSocket = new ServerSocket(port, 100, addr);
-        System.out.println("Listening on port: " + port);
+    public Server(String host, int port, boolean multimode_on, DocumentHandlerManager manager, int connections, AdmissionController admission, FairScheduler scheduler, ListenerSettings listener, CostAccounting costs) throws IOException, SAXException {
+        _listener = listener;
+        _sockets = new ArrayList<ServerSocket>();
+        if (port >= 0) {
+            _sockets = listener.bind(host, port);
+            System.out.println("Listening on port: " + port + " (" + listener + ")");
+        }
+        if (listener.unixSocket != null) {
+            _unixSocket = listener.bindUnix();
+            System.out.println("Listening on UNIX domain socket: " + listener.unixSocket + " (mode " + listener.unixSocketMode + ")");
+        }
         multimode = multimode_on;
         _manager = manager;
+        _workers = Executors.newFixedThreadPool(connections);
+        _admission = admission;
+        _scheduler = scheduler;
+        _flights = new SingleFlight();
+        _costs = costs;
+        System.out.println("Using " + connections + " connection threads, memory budget " + (admission.getBudget() / (1024 * 1024)) + " MB");
     }
 
     /**
@@ -126,13 +203,8 @@ public class Server extends Thread
      * @param in The DataInputStream to read from
      * @throws IOException if there is an error reading
      */
-    private void readData(byte[] read_buffer, int size, DataInputStream in) throws IOException {
-        int total_read = 0;
-        int bytes_read = 0;
-        while (total_read < size) {
-            bytes_read = in.read(read_buffer, total_read, size - total_read);
-            total_read += bytes_read;
-        }
+    static void readData(byte[] read_buffer, int size, DataInputStream in) throws IOException {
+        in.readFully(read_buffer, 0, size);
     }
 
     /**
@@ -145,7 +217,7 @@ public class Server extends Thread
      * @return The size of the next data chunk
      * @throws IOException If there is an error during the read
      */
-    private int readDataLength(DataInputStream in) throws IOException {
+    static int readDataLength(DataInputStream in) throws IOException {
         byte[] read_buffer = new byte[4];
         readData(read_buffer, 4, in);
         ByteBuffer bb = ByteBuffer.wrap(read_buffer);
@@ -162,11 +234,39 @@ public class Server extends Thread
      * @return String the string that is read
      * @throws IOException If there is an error during the read
      */
-    private String readDataString(DataInputStream in) throws IOException {
+    static String readDataString(DataInputStream in) throws IOException {
         int size = readDataLength(in);
+        return readDataString(size, in);
+    }
+
+    /**
+     * Read the data of a string chunk of which the size has already
+     * been read
+     *
+     * @param size The size of the data
+     * @param in The data stream to read from
+     * @return String the string that is read
+     * @throws IOException If there is an error during the read
+     */
+    static String readDataString(int size, DataInputStream in) throws IOException {
+        return new String(readDataBytes(size, in), "UTF-8");
+    }
+
+    /**
+     * Read the data of a chunk of which the size has already been read
+     *
+     * @param size The size of the data
+     * @param in The data stream to read from
+     * @return The data that is read
+     * @throws IOException If there is an error during the read
+     */
+    static byte[] readDataBytes(int size, DataInputStream in) throws IOException {
+        if (size < 0) {
+            throw new IOException("Bad data size: " + size);
+        }
         byte[] read_buffer = new byte[size];
         readData(read_buffer, size, in);
-        return new String(read_buffer, "UTF-8");
+        return read_buffer;
     }
 
     /**
@@ -176,7 +276,7 @@ public class Server extends Thread
      * @param out The DataOutputStream to send to
      * @throws IOException If there is an error while sending
      */
-    private void sendData(byte[] data, DataOutputStream out) throws IOException {
+    static void sendData(byte[] data, DataOutputStream out) throws IOException {
         out.write(data, 0, data.length);
     }
 
@@ -187,7 +287,7 @@ public class Server extends Thread
      * @param out The DataOutputStream to send to
      * @throws IOException If there is an error while sending
      */
-    private void sendDataSize(int size, DataOutputStream out) throws IOException {
+    static void sendDataSize(int size, DataOutputStream out) throws IOException {
         byte[] size_bytes = new byte[4];
         ByteBuffer bb = ByteBuffer.wrap(size_bytes);
         bb.order(ByteOrder.BIG_ENDIAN);
@@ -203,7 +303,7 @@ public class Server extends Thread
      * @param out The DataOutputStream to send to
      * @throws IOException If there is an error while sending
      */
-    private void sendDataString(String data, DataOutputStream out)throws IOException  {
+    static void sendDataString(String data, DataOutputStream out)throws IOException  {
         try {
             byte[] data_bytes = data.getBytes("UTF-8");
             sendDataSize(data_bytes.length, out);
@@ -213,52 +313,301 @@ public class Server extends Thread
         }
     }
 
-    private void validateDocument(DocumentHandler handler, DataInputStream in, DataOutputStream out) throws IOException, TransformerException {
-        String status = null;
-        String result = null;
+    /**
+     * Wait for a slot to process a document, or send an error to the
+     * client
+     *
+     * @param keyword The keyword of the handler
+     * @param out The DataOutputStream to send errors to
+     * @return The ticket, or null if the request was rejected
+     * @throws IOException If there is an error while sending
+     */
+    private FairScheduler.Ticket schedule(String keyword, DataOutputStream out) throws IOException {
+        try {
+            return _scheduler.acquire(keyword);
+        } catch (AdmissionController.RejectedException re) {
+            String status = "Error: " + re.getMessage();
+            System.out.println(status + " (" + keyword + ")");
+            sendDataString(status, out);
+        } catch (InterruptedException ie) {
+            sendDataString("Error: interrupted", out);
+        }
+        return null;
+    }
 
+    /**
+     * Reserve memory for a document, or send an error to the client
+     *
+     * @param size The size of the document as it is sent
+     * @param compressed Whether the document is sent compressed
+     * @param out The DataOutputStream to send errors to
+     * @return The reservation, or null if the document was rejected
+     * @throws IOException If there is an error while sending
+     */
+    private AdmissionController.Reservation reserve(long size, boolean compressed, DataOutputStream out) throws IOException {
+        try {
+            if (compressed) {
+                return _admission.reserveCompressed(size);
+            }
+            return _admission.reserve(size);
+        } catch (AdmissionController.RejectedException re) {
+            String status = "Error: " + re.getMessage();
+            System.out.println(status);
+            sendDataString(status, out);
+        } catch (InterruptedException ie) {
+            sendDataString("Error: interrupted", out);
+        }
+        return null;
+    }
+
+    private boolean validateDocument(String keyword, DocumentHandler handler, DataInputStream in, DataOutputStream out, ConnectionOptions options, boolean profile) throws IOException, TransformerException {
         //System.out.println("[XX] validateDocument called");
         handler.checkModified();
-        String xml = readDataString(in);
-        // Validate against schema
-        if (handler != null && handler.hasXSDValidator()) {
-            System.out.println("validating XSD");
-            try {
-                StringReader reader = new StringReader(xml);
-                StreamSource source = new StreamSource(reader);
-                handler.getXSDValidator().validate(source);
-                //result = handler.getTransformer().transformString(xml);
-                // set status only if we have no xslt tranform
-                if (!handler.hasTransformer()) {
-                    status = "Success: transformation succeeded\n";
+
+        // Reserve memory for the document before reading it
+        int size = readDataLength(in);
+        if (size <= 0) {
+            String status = "Error: bad document size: " + size;
+            System.out.println(status);
+            sendDataString(status, out);
+            return false;
+        }
+        AdmissionController.Reservation reservation = null;
+        // Profiled requests are not representative, and not counted
+        RequestCost cost = profile ? null : new RequestCost(keyword, size);
+        boolean transformed = false;
+        try {
+            reservation = reserve(size, options.isCompressed(), out);
+            if (reservation == null) {
+                return false;
+            }
+            // The document is parsed (and validated) while it is
+            // being received; the parser decodes the raw bytes
+            // according to the document's own encoding declaration
+            BoundedInputStream frame = new BoundedInputStream(in, size);
+            InputStream xml = frame;
+            if (options.isCompressed()) {
+                // Decompressing stops at the size memory was reserved for
+                xml = new LimitedInputStream(Compression.wrapInput(options.compression, frame), reservation.getDocumentSize());
+            }
+            transformed = validateDocument(keyword, handler, xml, frame, out, options, profile, cost);
+            return transformed;
+        } finally {
+            if (reservation != null) {
+                reservation.release();
+            }
+            if (cost != null) {
+                cost.setSucceeded(transformed);
+                _costs.record(cost);
+            }
+        }
+    }
+
+    /**
+     * Validate and transform a document, and send the status and result
+     *
+     * The document is received and parsed before a turn to process it
+     * is taken from the scheduler, and the turn ends before the result
+     * is sent, so that slow clients do not hold on to it.
+     *
+     * @param keyword The keyword of the handler
+     * @param handler The document handler to use
+     * @param xml The document data
+     * @param frame The message on the connection the document is read
+     *        from
+     * @param out The DataOutputStream to send to
+     * @param options The connection options
+     * @param profile If true, send the time spent per template instead
+     *        of the result
+     * @param cost The cost of the request, or null
+     * @return true if the document was transformed
+     * @throws IOException If there is an error while sending
+     */
+    private boolean validateDocument(String keyword, DocumentHandler handler, InputStream xml, BoundedInputStream frame, DataOutputStream out, ConnectionOptions options, boolean profile, RequestCost cost) throws IOException {
+        String status = null;
+
+        // Parse the document, validating it against the schema (if any)
+        // in the same pass, and hash it while it is read
+        XSLTTransformer transformer = handler.getTransformer();
+        MessageDigest digest = SingleFlight.newDigest();
+        Source tree = null;
+        try {
+            InputStream hashed = new DigestInputStream(xml, digest);
+            // The parser closes its input when it is done, keep it open
+            // (e.g. a decompressing stream) to hash the rest
+            tree = handler.parse(new InputSource(new FilterInputStream(hashed) {
+                public void close() {
                 }
-                //System.out.println("[XX] xsd validation complete");
-            } catch (SAXException saxe) {
+            }), transformer);
+            // Hash anything the parser did not need to read, and skip
+            // anything after the end of compressed data
+            byte[] buf = new byte[8192];
+            while (hashed.read(buf) >= 0) {
+            }
+            frame.skipRemaining();
+        } catch (SAXException saxe) {
+            if (handler.hasXSDValidator()) {
                 status = "Error: invalid " + saxe.toString();
-                System.out.println(status);
-            } catch (Exception exc) {
-                status = "Error processing document: " + exc.toString();
-                System.out.println(status);
-                exc.printStackTrace();
+            } else {
+                status = "Error processing document: " + saxe.toString();
+            }
+            System.out.println(status);
+        } catch (LimitedInputStream.TooLargeException tle) {
+            status = "Error: " + tle.getMessage();
+            System.out.println(status);
+        } catch (Exception exc) {
+            status = "Error processing document: " + exc.toString();
+            System.out.println(status);
+            exc.printStackTrace();
+        } finally {
+            // Also count the cost of documents that fail to parse
+            if (cost != null) {
+                cost.mark("parse");
             }
         }
-        if (status == null && handler != null) {
-            // Transform XSLT
-            try {
-                result = handler.getTransformer().transformString(xml);
-                status = "Success: transformation succeeded\n";
-            } catch (Exception exc) {
-                status = "Error processing document: " + exc.toString();
-                System.out.println(status);
-                exc.printStackTrace();
+
+        if (status != null) {
+            sendDataString(status, out);
+            if (frame.getRemaining() > 0) {
+                // The document was rejected before all of it was received;
+                // discard the rest (without keeping it) so that the client
+                // is not reset before it reads the reply
+                out.flush();
+                frame.skipRemaining();
             }
+            return false;
         }
 
-        //System.out.println("Sending status: " + status);
-        sendDataString(status, out);
+        if (profile) {
+            // Wait for a turn to process the document
+            FairScheduler.Ticket ticket = schedule(keyword, out);
+            if (ticket == null) {
+                return false;
+            }
+            return profileDocument(transformer, tree, ticket, out);
+        }
+
+        // Identical requests that are processed at the same time (such
+        // as retries) share one transformation
+        byte[] hash = digest.digest();
+        if (cost != null) {
+            cost.setHash(hash);
+        }
+        SingleFlight.Flight flight = _flights.join(new SingleFlight.Key(transformer, hash, options.output, options.compression));
+        try {
+            if (flight.claim()) {
+                transform(keyword, transformer, tree, options, flight, cost);
+            } else {
+                // Waiting does not take a turn, only the transformation
+                // itself does
+                try {
+                    flight.await();
+                } catch (InterruptedException ie) {
+                    sendDataString("Error: interrupted", out);
+                    return false;
+                } finally {
+                    if (cost != null) {
+                        cost.mark("wait");
+                    }
+                }
+            }
+            //System.out.println("Sending status: " + flight.getStatus());
+            sendDataString(flight.getStatus(), out);
+            ResultSpool result = flight.getResult();
+            if (result != null) {
+                try {
+                    sendDataSize((int) result.size(), out);
+                    result.sendTo(out);
+                    out.flush();
+                } finally {
+                    if (cost != null) {
+                        cost.mark("send");
+                    }
+                }
+            }
+            return result != null;
+        } finally {
+            _flights.leave(flight);
+        }
+    }
 
-        if (result != null) {
-            sendDataString(result, out);
+    /**
+     * Transform a parsed document with tracing, and send the time spent
+     * per template, see XSLTTransformer.profile()
+     *
+     * @param ticket The turn to process the document, which is released
+     *        before anything is sent
+     * @return true if the document was transformed
+     */
+    private boolean profileDocument(XSLTTransformer transformer, Source tree, FairScheduler.Ticket ticket, DataOutputStream out) throws IOException {
+        ArrayList<String> lines = null;
+        String status = null;
+        try {
+            lines = transformer.profile(tree);
+        } catch (Exception exc) {
+            status = "Error processing document: " + exc.toString();
+            System.out.println(status);
+        } finally {
+            ticket.release();
+        }
+        if (status != null) {
+            sendDataString(status, out);
+            return false;
+        }
+        sendDataString("Success: document profiled", out);
+        for (String line : lines) {
+            sendDataString(line, out);
+        }
+        sendDataString("XTSTResponseEnd", out);
+        return true;
+    }
+
+    /**
+     * Wait for a turn, transform a parsed document, and complete the
+     * flight with the status and result
+     *
+     * The turn is held only while transforming, so that the adaptive
+     * limit samples the processing time alone.
+     */
+    private void transform(String keyword, XSLTTransformer transformer, Source tree, ConnectionOptions options, SingleFlight.Flight flight, RequestCost cost) {
+        String status = "Error processing document: internal error";
+        boolean transformed = false;
+        ResultSpool result = new ResultSpool();
+        FairScheduler.Ticket ticket = null;
+        try {
+            ticket = _scheduler.acquire(keyword);
+            // Serialize straight into the (compressed) result data,
+            // which is spilled to a file if it gets large
+            OutputStream resultStream = Compression.wrapOutput(options.compression, result);
+            transformer.transformTree(tree, resultStream, options.output, cost);
+            resultStream.close();
+            if (result.size() > Integer.MAX_VALUE) {
+                status = "Error processing document: result too large (" + result.size() + " bytes)";
+                System.out.println(status);
+            } else {
+                transformed = true;
+                status = "Success: transformation succeeded\n";
+            }
+        } catch (AdmissionController.RejectedException re) {
+            status = "Error: " + re.getMessage();
+            System.out.println(status + " (" + keyword + ")");
+        } catch (InterruptedException ie) {
+            status = "Error: interrupted";
+        } catch (Exception exc) {
+            status = "Error processing document: " + exc.toString();
+            System.out.println(status);
+            exc.printStackTrace();
+        } finally {
+            if (ticket != null) {
+                ticket.release();
+            }
+            // Always complete the flight, the other requests wait for it
+            if (transformed) {
+                flight.complete(status, result);
+            } else {
+                result.release();
+                flight.complete(status, null);
+            }
         }
     }
 
@@ -266,97 +615,251 @@ public class Server extends Thread
      * Run the server
      */
     public void run() {
+        ArrayList<Thread> acceptors = new ArrayList<Thread>();
+        for (final ServerSocket socket : _sockets) {
+            Thread acceptor = new Thread() {
+                public void run() {
+                    accept(socket);
+                }
+            };
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        if (_unixSocket != null) {
+            Thread acceptor = new Thread() {
+                public void run() {
+                    acceptUnix(_unixSocket);
+                }
+            };
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+        _workers.shutdown();
+    }
+
+    /**
+     * Accept connections on one of the listening sockets, and pass
+     * them on to the worker threads
+     *
+     * @param serverSocket The listening socket
+     */
+    private void accept(ServerSocket serverSocket) {
         while(true) {
+            final Socket server;
+            try {
+                server = serverSocket.accept();
+            } catch (SocketTimeoutException s) {
+                System.out.println("Socket timed out!");
+                break;
+            } catch(IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                // e.g. out of file descriptors; keep accepting
+                System.out.println("Error: accepting connection: " + e);
+                continue;
+            }
+            // A client that resets the connection right away must
+            // only lose its own connection, not stop this thread
+            try {
+                _listener.configure(server);
+                final ClientConnection connection = ClientConnection.forSocket(server);
+                _workers.execute(new Runnable() {
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                });
+            } catch(IOException e) {
+                System.out.println("Error: setting up connection: " + e);
+                try {
+                    server.close();
+                } catch (IOException ioe) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Accept connections on the UNIX domain socket, and pass them on
+     * to the worker threads
+     *
+     * @param serverChannel The listening channel
+     */
+    private void acceptUnix(ServerSocketChannel serverChannel) {
+        while (true) {
             try {
-                Socket server = serverSocket.accept();
-                //System.err.println("[XX] accept");
+                final ClientConnection connection = ClientConnection.forChannel(serverChannel.accept());
+                _workers.execute(new Runnable() {
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                });
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    break;
+                }
+                System.out.println("Error: accepting connection: " + e);
+            }
+        }
+    }
 
-                DataInputStream in =
-                      new DataInputStream(server.getInputStream());
-                DataOutputStream out =
-                     new DataOutputStream(server.getOutputStream());
+    /**
+     * Handle one client connection, called from a worker thread
+     *
+     * @param server The connection, closed when done
+     */
+    private void handleConnection(ClientConnection server) {
+        try {
+            DataInputStream in =
+                  new DataInputStream(server.getInputStream());
+            DataOutputStream out =
+                 new DataOutputStream(server.getOutputStream());
 
-                String command = null;
-                String status = null;
-                String result = null;
+            ConnectionOptions options = new ConnectionOptions();
 
-                sendDataString("XSLT Transformer server version " +
-                               VERSION + ", protocol version: " +
-                               Server.PROTOCOL_VERSION + "\n", out);
+            sendDataString("XSLT Transformer server version " +
+                           VERSION + ", protocol version: " +
+                           Server.PROTOCOL_VERSION + "\n", out);
 
-                try {
-                    command = readDataString(in);
-
-                    if (command.startsWith("validate")) {
-                        if (multimode) {
-                            if (command.length() <= 9) {
-                                status = "Error: validate needs a keyword when running in multimode";
-                                sendDataString(status, out);
-                            } else {
-                                String keyword = command.substring(9);
-                                DocumentHandler handler = _manager.getDocumentHandler(keyword);
-                                if (handler == null) {
-                                    System.out.println("Request for unknown keyword '" + keyword + "'");
-
-                                    for (String key : _manager._handlers.keySet()) {
-                                        System.out.println("   '" + key + "'");
-                                    }
-                                    sendDataString("Error: unknown keyword '" + keyword + "'\n", out);
-                                } else {
-                                    sendDataString("Success: send the XML document now", out);
-                                    validateDocument(handler, in, out);
-                                }
-                            }
-                        } else {
-                            sendDataString("Success: send the XML document now", out);
-                            validateDocument(_manager.getDocumentHandler("default"), in, out);
-                        }
-                    // check other commands here
-                    } else if (command.equals("reload")) {
-                        _manager.load();
-                        sendDataString("Success: handler(s) reloaded", out);
-                        sendDataString("XTSTResponseEnd", out);
-                    } else if (command.equals("list-handlers")) {
-                        sendHandlers(out);
-                        sendDataString("XTSTResponseEnd", out);
-                    } else {
-                        status = "Error: Unknown command";
-                        sendDataString(status, out);
+            try {
+                String command = readDataString(in);
+                while (handleCommand(command, in, out, options) && options.keepalive) {
+                    // Wait (for a limited time) for the next command
+                    server.setIdleTimeout(KEEPALIVE_TIMEOUT_MILLISECONDS);
+                    try {
+                        command = readDataString(in);
+                    } catch (IOException ioe) {
+                        // Closed by the client, or idle for too long
+                        return;
                     }
-                } catch (IOException ioe) {
-                    System.out.println("[XX] XTST Error: " + ioe);
-                    sendDataString("Error: " + ioe + "\n", out);
-                } catch (Exception xpe) {
-                    System.out.println("[XX] XTST Error: " + xpe);
-                    sendDataString("Error: " + xpe + "\n", out);
+                    server.setIdleTimeout(0);
                 }
+            } catch (IOException ioe) {
+                System.out.println("Error: " + ioe);
+                sendDataString("Error: " + ioe + "\n", out);
+            } catch (Exception xpe) {
+                System.out.println("Error: " + xpe);
+                sendDataString("Error: " + xpe + "\n", out);
+            }
+        } catch (java.net.SocketException se) {
+            System.out.println("Could not send back result: " + se);
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
                 server.close();
-            } catch (java.net.SocketException se) {
-                System.out.println("Could not send back result: " + se);
-            } catch (SocketTimeoutException s) {
-                System.out.println("Socket timed out!");
-                break;
-            } catch(IOException e) {
-                e.printStackTrace();
-                break;
+            } catch (IOException ioe) {
+                // nothing left to do
             }
         }
     }
 
-    private void sendHandlers(DataOutputStream out) throws IOException {
-        sendDataString("<XTSTHandlers>", out);
-        for (Map.Entry<String, DocumentHandler> entry : _manager.getHandlers().entrySet()) {
-            DocumentHandler handler = entry.getValue();
-            sendDataString("  <Handler>", out);
-            sendDataString("    <Name>" + handler.getName() + "</Name>", out);
-            sendDataString("    <Description>" + handler.getDescription() + "</Description>", out);
-            sendDataString("    <Keyword>" + entry.getKey() + "</Keyword>", out);
-            sendDataString("  </Handler>", out);
-            //result += "  <Name>" + handler.getName() + "</Name>\n";
-            //result += "  <Description>" + handler.getDescription() + "</Description>\n";
-            //result += "  <Keyword>" + entry.getKey() + "</Keyword>\n";
+    /**
+     * Handle one command, preceded by any number of set commands
+     *
+     * @param command The first command read from the client
+     * @param in The DataInputStream to read from
+     * @param out The DataOutputStream to send to
+     * @param options The connection options
+     * @return true if the command succeeded, false if an error was
+     *         sent (after which the connection is closed)
+     */
+    private boolean handleCommand(String command, DataInputStream in, DataOutputStream out, ConnectionOptions options) throws Exception {
+        while (command.startsWith("set ")) {
+            String error = options.set(command);
+            if (error != null) {
+                sendDataString("Error: " + error, out);
+                return false;
+            }
+            sendDataString("Success: " + command.substring(4), out);
+            command = readDataString(in);
+        }
+
+        if (command.startsWith("validate") || command.startsWith("profile")) {
+            boolean profile = command.startsWith("profile");
+            String name = profile ? "profile" : "validate";
+            if (multimode) {
+                if (command.length() <= name.length() + 1) {
+                    sendDataString("Error: " + name + " needs a keyword when running in multimode", out);
+                    return false;
+                }
+                String keyword = command.substring(name.length() + 1);
+                DocumentHandler handler = _manager.getDocumentHandler(keyword);
+                if (handler == null) {
+                    System.out.println("Request for unknown keyword '" + keyword + "'");
+
+                    for (String key : _manager._handlers.keySet()) {
+                        System.out.println("   '" + key + "'");
+                    }
+                    sendDataString("Error: unknown keyword '" + keyword + "'\n", out);
+                    return false;
+                }
+                sendDataString("Success: send the XML document now", out);
+                return validateDocument(keyword, handler, in, out, options, profile);
+            } else {
+                sendDataString("Success: send the XML document now", out);
+                return validateDocument("default", _manager.getDocumentHandler("default"), in, out, options, profile);
+            }
+        // check other commands here
+        } else if (command.equals("reload")) {
+            _manager.load();
+            sendDataString("Success: handler(s) reloaded", out);
+            sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else if (command.equals("list-handlers")) {
+            sendHandlers(out);
+            sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else if (command.equals("stats")) {
+            for (String line : _scheduler.describeStats()) {
+                sendDataString(line, out);
+            }
+            sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else if (command.equals("top") || command.startsWith("top ")) {
+            int count = parseTopCount(command);
+            if (count < 0) {
+                sendDataString("Error: top needs a positive number", out);
+                return false;
+            }
+            for (String line : _costs.describe(count)) {
+                sendDataString(line, out);
+            }
+            sendDataString("XTSTResponseEnd", out);
+            return true;
+        } else {
+            sendDataString("Error: Unknown command", out);
+            return false;
+        }
+    }
 
+    /**
+     * Return the number of requests asked for by a top command
+     * ('top' or 'top <count>'), or -1 if it is not a valid number
+     */
+    static int parseTopCount(String command) {
+        if (command.equals("top")) {
+            return DEFAULT_TOP_COUNT;
+        }
+        try {
+            int count = Integer.parseInt(command.substring(4).trim());
+            return count > 0 ? count : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private void sendHandlers(DataOutputStream out) throws IOException {
+        for (String line : _manager.describeHandlers()) {
+            sendDataString(line, out);
         }
-        sendDataString("</XTSTHandlers>", out);
     }
 }
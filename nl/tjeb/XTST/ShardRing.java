@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of keywords onto a number of shards
+ *
+ * Every shard is placed on a hash ring at a number of (pseudo-random)
+ * points; a keyword belongs to the shard of the first point at or
+ * after the hash of the keyword. When a shard is added, only the
+ * keywords that end up on its new points move.
+ *
+ * The ring only depends on the number of shards, so the proxy (which
+ * routes requests to the shards) and the backend servers (which each
+ * load only the handlers of their own shard) agree on it without
+ * further configuration.
+ */
+public class ShardRing {
+    // Points per shard; more points spread the keywords more evenly
+    private static final int POINTS_PER_SHARD = 128;
+
+    private int _shards;
+    private TreeMap<Long, Integer> _ring;
+
+    /**
+     * Initializer
+     *
+     * @param shards The number of shards
+     */
+    public ShardRing(int shards) {
+        _shards = shards;
+        _ring = new TreeMap<Long, Integer>();
+        for (int shard = 0; shard < shards; shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                _ring.put(hash("shard-" + shard + "-" + point), shard);
+            }
+        }
+    }
+
+    public int getShardCount() {
+        return _shards;
+    }
+
+    /**
+     * Return the shard (0 to getShardCount() - 1) the given keyword
+     * belongs to
+     */
+    public int shardFor(String keyword) {
+        Map.Entry<Long, Integer> entry = _ring.ceilingEntry(hash(keyword));
+        if (entry == null) {
+            entry = _ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xff);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support MD5
+            throw new RuntimeException(nsae);
+        } catch (UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Lets identical requests that are processed at the same time share
+ * one transformation
+ *
+ * Requests are identical if they have the same transformer (so the
+ * same handler, and the same version of its stylesheets), the same
+ * document (by its SHA-256 hash) and the same output options. The
+ * first of them transforms the document, the others wait for it and
+ * send the same result. Nothing is kept once all of them have sent the
+ * result, so a request that arrives after that is transformed again.
+ */
+class SingleFlight {
+    private HashMap<Key, Flight> _flights = new HashMap<Key, Flight>();
+
+    /**
+     * Identifies a transformation
+     */
+    static class Key {
+        private XSLTTransformer _transformer;
+        private byte[] _hash;
+        private String _output;
+        private String _compression;
+
+        /**
+         * Initializer
+         *
+         * @param transformer The transformer of the handler
+         * @param hash The SHA-256 hash of the document, see newDigest()
+         * @param output The output option of the request
+         * @param compression The compression option of the request
+         */
+        Key(XSLTTransformer transformer, byte[] hash, String output, String compression) {
+            _transformer = transformer;
+            _hash = hash;
+            _output = output;
+            _compression = compression;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return _transformer == key._transformer &&
+                   Arrays.equals(_hash, key._hash) &&
+                   equal(_output, key._output) &&
+                   equal(_compression, key._compression);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(_hash) ^ System.identityHashCode(_transformer);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * One transformation, shared by the requests that joined it
+     */
+    class Flight {
+        private Key _key;
+        private boolean _claimed;
+        private boolean _done;
+        private int _users;
+        private String _status;
+        private ResultSpool _result;
+
+        private Flight(Key key) {
+            _key = key;
+        }
+
+        /**
+         * Return true for the first caller, who must transform the
+         * document and call complete(); the others call await()
+         */
+        boolean claim() {
+            synchronized (SingleFlight.this) {
+                if (_claimed) {
+                    return false;
+                }
+                _claimed = true;
+                return true;
+            }
+        }
+
+        /**
+         * Publish the outcome of the transformation to the waiting
+         * requests; new requests no longer join this flight
+         *
+         * @param status The status line to send
+         * @param result The result, or null if the transformation failed
+         */
+        void complete(String status, ResultSpool result) {
+            synchronized (SingleFlight.this) {
+                _status = status;
+                _result = result;
+                _done = true;
+                if (_flights.get(_key) == this) {
+                    _flights.remove(_key);
+                }
+                SingleFlight.this.notifyAll();
+            }
+        }
+
+        /**
+         * Wait until the transformation is complete
+         */
+        void await() throws InterruptedException {
+            synchronized (SingleFlight.this) {
+                while (!_done) {
+                    SingleFlight.this.wait();
+                }
+            }
+        }
+
+        String getStatus() {
+            return _status;
+        }
+
+        ResultSpool getResult() {
+            return _result;
+        }
+    }
+
+    /**
+     * Return a new digest to hash a document with
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support SHA-256
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    /**
+     * Join the transformation with the given key, starting a new one if
+     * there is none in progress; every join must be followed by a
+     * leave()
+     */
+    synchronized Flight join(Key key) {
+        Flight flight = _flights.get(key);
+        if (flight == null) {
+            flight = new Flight(key);
+            _flights.put(key, flight);
+        }
+        flight._users++;
+        return flight;
+    }
+
+    /**
+     * Leave a transformation; the result is released when the last
+     * request has left
+     */
+    synchronized void leave(Flight flight) {
+        flight._users--;
+        if (flight._users == 0 && flight._result != null) {
+            flight._result.release();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.CallTemplate;
+import net.sf.saxon.expr.instruct.NamedTemplate;
+import net.sf.saxon.expr.instruct.TemplateRule;
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.trans.Rule;
+
+/**
+ * Collects the time spent in, and the number of calls of, every
+ * template and function of a stylesheet during a transformation
+ *
+ * The stylesheet must have been compiled with tracing code (see
+ * ArtifactRegistry.compileForProfiling()). Saxon then reports every
+ * instruction that is entered and left, and every item that
+ * apply-templates (or for-each) starts processing; the time between
+ * two such events is counted for the template or function that was
+ * executing. For Schematron, every rule is a template, so the report
+ * shows the time per rule.
+ *
+ * The times include the overhead of the tracing itself, so they are
+ * only meaningful relative to each other.
+ */
+class StylesheetProfiler implements TraceListener {
+    /**
+     * The numbers for one template or function
+     */
+    private static class Stat {
+        String element;
+        String attributes;
+        long calls;
+        long selfNanos;
+        long totalNanos;
+        // The number of its calls that are in progress (for recursion)
+        int active;
+    }
+
+    /**
+     * An instruction that is being executed, or an item that is being
+     * processed
+     */
+    private static class Frame {
+        // The template or function that is executing
+        Stat owner;
+        // Set if this frame is a call of the owner
+        boolean call;
+        // For item frames: true until the first instruction is entered
+        boolean newItem;
+        XPathContext context;
+        long start;
+    }
+
+    private IdentityHashMap<Object, Stat> _stats = new IdentityHashMap<Object, Stat>();
+    private ArrayList<Frame> _stack = new ArrayList<Frame>();
+    // Time outside any template (such as in built-in template rules)
+    private Stat _outside;
+    private long _last;
+
+    StylesheetProfiler() {
+        _outside = new Stat();
+        _outside.element = "Other";
+        _outside.attributes = "";
+    }
+
+    public void setOutputDestination(Logger logger) {
+    }
+
+    public void open(Controller controller) {
+        _last = System.nanoTime();
+    }
+
+    public void close() {
+        charge(System.nanoTime());
+    }
+
+    public void enter(InstructionInfo info, XPathContext context) {
+        long now = System.nanoTime();
+        charge(now);
+        Frame parent = top();
+        Frame frame = new Frame();
+        frame.owner = parent == null ? _outside : parent.owner;
+        frame.context = context;
+        frame.start = now;
+
+        int construct = info.getConstructType();
+        if (construct == StandardNames.XSL_FUNCTION) {
+            startCall(frame, getStat(info.getObjectName().getClarkName(), "Function",
+                                     "name=\"" + escape(info.getObjectName().getDisplayName()) + "\"", info.getLineNumber()));
+        } else if (construct == StandardNames.XSL_CALL_TEMPLATE) {
+            Object instruction = info.getProperty("expression");
+            if (instruction instanceof CallTemplate) {
+                NamedTemplate template = ((CallTemplate) instruction).getTargetTemplate();
+                if (template != null) {
+                    startCall(frame, getStat(template, "Template",
+                                             "name=\"" + escape(template.getTemplateName().getDisplayName()) + "\"", template.getLineNumber()));
+                }
+            }
+        } else if (parent != null && parent.newItem) {
+            // The first instruction for a new item; if it runs in a
+            // template rule of its own, that template has been called
+            Rule rule = context.getCurrentTemplateRule();
+            if (rule != null && rule.getAction() instanceof TemplateRule && context != ownerContext()) {
+                TemplateRule template = (TemplateRule) rule.getAction();
+                parent.owner = getStat(template, "Template",
+                                       "match=\"" + escape(template.getMatchPattern().toString()) + "\"", template.getLineNumber());
+                parent.call = true;
+                parent.context = context;
+                parent.owner.calls++;
+                parent.owner.active++;
+                frame.owner = parent.owner;
+            }
+        }
+        if (parent != null) {
+            parent.newItem = false;
+        }
+        _stack.add(frame);
+    }
+
+    public void leave(InstructionInfo info) {
+        pop();
+    }
+
+    public void startCurrentItem(Item item) {
+        long now = System.nanoTime();
+        charge(now);
+        Frame parent = top();
+        Frame frame = new Frame();
+        frame.owner = parent == null ? _outside : parent.owner;
+        frame.context = parent == null ? null : parent.context;
+        frame.newItem = true;
+        frame.start = now;
+        _stack.add(frame);
+    }
+
+    public void endCurrentItem(Item item) {
+        pop();
+    }
+
+    private void startCall(Frame frame, Stat stat) {
+        frame.owner = stat;
+        frame.call = true;
+        stat.calls++;
+        stat.active++;
+    }
+
+    private Frame top() {
+        return _stack.isEmpty() ? null : _stack.get(_stack.size() - 1);
+    }
+
+    /**
+     * Return the context of the innermost template call, to recognize
+     * instructions of the same call
+     */
+    private XPathContext ownerContext() {
+        for (int i = _stack.size() - 1; i >= 0; i--) {
+            if (_stack.get(i).call) {
+                return _stack.get(i).context;
+            }
+        }
+        return null;
+    }
+
+    private void pop() {
+        long now = System.nanoTime();
+        charge(now);
+        if (_stack.isEmpty()) {
+            return;
+        }
+        Frame frame = _stack.remove(_stack.size() - 1);
+        if (frame.call) {
+            frame.owner.active--;
+            // For recursive calls, only the outermost one counts
+            if (frame.owner.active == 0) {
+                frame.owner.totalNanos += now - frame.start;
+            }
+        }
+    }
+
+    /**
+     * Count the time since the last event for the template or function
+     * that was executing
+     */
+    private void charge(long now) {
+        Frame frame = top();
+        Stat owner = frame == null ? _outside : frame.owner;
+        owner.selfNanos += now - _last;
+        _last = now;
+    }
+
+    private Stat getStat(Object key, String element, String attributes, int line) {
+        Stat stat = _stats.get(key);
+        if (stat == null) {
+            stat = new Stat();
+            stat.element = element;
+            stat.attributes = attributes + " line=\"" + line + "\"";
+            _stats.put(key, stat);
+        }
+        return stat;
+    }
+
+    /**
+     * Describe the collected numbers, the most expensive templates and
+     * functions (by their own time) first:
+     *
+     * <Stylesheet file="rules.xsl" totalMs="12.5">
+     *   <Template match="element(Q{}b)" line="4" calls="10" selfMs="8.1" totalMs="9.0"/>
+     *   <Function name="f:double" line="2" calls="10" selfMs="0.4" totalMs="0.4"/>
+     *   <Other selfMs="0.2"/>
+     * </Stylesheet>
+     *
+     * @param fileName The stylesheet file
+     * @param totalNanos The time the whole transformation took
+     */
+    ArrayList<String> describe(String fileName, long totalNanos) {
+        ArrayList<Stat> stats = new ArrayList<Stat>(_stats.values());
+        Collections.sort(stats, new Comparator<Stat>() {
+            public int compare(Stat a, Stat b) {
+                return Long.compare(b.selfNanos, a.selfNanos);
+            }
+        });
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("  <Stylesheet file=\"" + escape(fileName) + "\" totalMs=\"" + millis(totalNanos) + "\">");
+        for (Stat stat : stats) {
+            lines.add("    <" + stat.element + " " + stat.attributes +
+                      " calls=\"" + stat.calls + "\"" +
+                      " selfMs=\"" + millis(stat.selfNanos) + "\"" +
+                      " totalMs=\"" + millis(stat.totalNanos) + "\"/>");
+        }
+        lines.add("    <Other selfMs=\"" + millis(_outside.selfNanos) + "\"/>");
+        lines.add("  </Stylesheet>");
+        return lines;
+    }
+
+    private static String millis(long nanos) {
+        return Double.toString(Math.round(nanos / 100000.0) / 10.0);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import java.util.Enumeration;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Receives the output of a (Schematron) stylesheet as SAX events,
+ * and counts the SVRL failed-assert and successful-report elements,
+ * without building a tree of the full output
+ *
+ * Optionally, the failed-assert elements are copied to a target
+ * element, so that they can be returned without the rest of the
+ * report.
+ */
+class SummaryHandler extends DefaultHandler {
+    static final String SVRL_NS = "http://purl.oclc.org/dsdl/svrl";
+
+    private int _failedAsserts;
+    private int _successfulReports;
+
+    private SAXTransformerFactory _factory;
+    private Element _failuresTarget;
+    private NamespaceSupport _namespaces;
+    private boolean _newContext;
+    // When copying a failed-assert, the handler building the copy and
+    // the element depth within it
+    private TransformerHandler _copy;
+    private int _copyDepth;
+
+    /**
+     * Initializer
+     *
+     * @param factory The factory to create copying handlers with
+     * @param failuresTarget The element to copy failed-assert elements
+     *        to, or null to only count them
+     */
+    SummaryHandler(SAXTransformerFactory factory, Element failuresTarget) {
+        _factory = factory;
+        _failuresTarget = failuresTarget;
+        _namespaces = new NamespaceSupport();
+        _newContext = true;
+    }
+
+    int getFailedAsserts() {
+        return _failedAsserts;
+    }
+
+    int getSuccessfulReports() {
+        return _successfulReports;
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (_newContext) {
+            _namespaces.pushContext();
+            _newContext = false;
+        }
+        _namespaces.declarePrefix(prefix, uri);
+        if (_copy != null) {
+            _copy.startPrefixMapping(prefix, uri);
+        }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        if (_copy != null) {
+            _copy.endPrefixMapping(prefix);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (_newContext) {
+            _namespaces.pushContext();
+        }
+        _newContext = true;
+
+        if (_copy != null) {
+            _copyDepth++;
+            _copy.startElement(uri, localName, qName, atts);
+            return;
+        }
+        if (SVRL_NS.equals(uri)) {
+            if (localName.equals("failed-assert")) {
+                _failedAsserts++;
+                if (_failuresTarget != null) {
+                    startCopy();
+                    _copy.startElement(uri, localName, qName, atts);
+                }
+            } else if (localName.equals("successful-report")) {
+                _successfulReports++;
+            }
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (_copy != null) {
+            _copy.endElement(uri, localName, qName);
+            if (_copyDepth == 0) {
+                _copy.endDocument();
+                _copy = null;
+            } else {
+                _copyDepth--;
+            }
+        }
+        _namespaces.popContext();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (_copy != null) {
+            _copy.characters(ch, start, length);
+        }
+    }
+
+    /**
+     * Start copying an element to the failures target, declaring the
+     * namespaces that are in scope
+     */
+    private void startCopy() throws SAXException {
+        try {
+            _copy = _factory.newTransformerHandler();
+        } catch (TransformerConfigurationException tce) {
+            throw new SAXException(tce);
+        }
+        _copy.setResult(new DOMResult(_failuresTarget));
+        _copy.startDocument();
+        _copyDepth = 0;
+        Enumeration<?> prefixes = _namespaces.getPrefixes();
+        while (prefixes.hasMoreElements()) {
+            String prefix = (String) prefixes.nextElement();
+            if (!prefix.equals("xml")) {
+                _copy.startPrefixMapping(prefix, _namespaces.getURI(prefix));
+            }
+        }
+        String defaultNamespace = _namespaces.getURI("");
+        if (defaultNamespace != null && defaultNamespace.length() > 0) {
+            _copy.startPrefixMapping("", defaultNamespace);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Sends the SAX events of one parse to two content handlers
+ *
+ * This is used to validate a document against an XSD while building
+ * the tree for the transformation from the same events. Lexical events
+ * (comments, CDATA sections) are only passed on to the second handler,
+ * if it accepts them.
+ */
+class TeeContentHandler implements ContentHandler, LexicalHandler {
+    private ContentHandler _first;
+    private ContentHandler _second;
+    private LexicalHandler _lexical;
+
+    TeeContentHandler(ContentHandler first, ContentHandler second) {
+        _first = first;
+        _second = second;
+        if (second instanceof LexicalHandler) {
+            _lexical = (LexicalHandler) second;
+        }
+    }
+
+    public void setDocumentLocator(Locator locator) {
+        _first.setDocumentLocator(locator);
+        _second.setDocumentLocator(locator);
+    }
+
+    public void startDocument() throws SAXException {
+        _first.startDocument();
+        _second.startDocument();
+    }
+
+    public void endDocument() throws SAXException {
+        _first.endDocument();
+        _second.endDocument();
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        _first.startPrefixMapping(prefix, uri);
+        _second.startPrefixMapping(prefix, uri);
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        _first.endPrefixMapping(prefix);
+        _second.endPrefixMapping(prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        _first.startElement(uri, localName, qName, atts);
+        _second.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        _first.endElement(uri, localName, qName);
+        _second.endElement(uri, localName, qName);
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        _first.characters(ch, start, length);
+        _second.characters(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        _first.ignorableWhitespace(ch, start, length);
+        _second.ignorableWhitespace(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        _first.processingInstruction(target, data);
+        _second.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        _first.skippedEntity(name);
+        _second.skippedEntity(name);
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        if (_lexical != null) {
+            _lexical.startDTD(name, publicId, systemId);
+        }
+    }
+
+    public void endDTD() throws SAXException {
+        if (_lexical != null) {
+            _lexical.endDTD();
+        }
+    }
+
+    public void startEntity(String name) throws SAXException {
+        if (_lexical != null) {
+            _lexical.startEntity(name);
+        }
+    }
+
+    public void endEntity(String name) throws SAXException {
+        if (_lexical != null) {
+            _lexical.endEntity(name);
+        }
+    }
+
+    public void startCDATA() throws SAXException {
+        if (_lexical != null) {
+            _lexical.startCDATA();
+        }
+    }
+
+    public void endCDATA() throws SAXException {
+        if (_lexical != null) {
+            _lexical.endCDATA();
+        }
+    }
+
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (_lexical != null) {
+            _lexical.comment(ch, start, length);
+        }
+    }
+}
@@ -28,22 +28,22 @@
 package nl.tjeb.XTST;
 
 import java.io.StringWriter;
-import java.io.File;
 import java.io.IOException;
-import java.io.DataInputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 
 import java.util.ArrayList;
 import java.util.Collection;
 
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -51,18 +51,46 @@ import org.xml.sax.InputSource;
 import javax.xml.parsers.*;
 import javax.xml.transform.OutputKeys;
 
-import net.sf.saxon.Configuration;
-import net.sf.saxon.TransformerFactoryImpl;
-
 /**
  * This class sets up a Saxon XSLT Transformer
+ *
+ * The stylesheets are compiled once into Templates; a new Transformer
+ * is created for every transformation, so that one instance can be
+ * used by several threads at the same time.
+ *
+ * All stylesheets share one Saxon configuration, so that the source
+ * document only has to be parsed once; the resulting tree is then
+ * used as the input for each of the stylesheets.
+ *
+ * The stylesheets are compiled through the ArtifactRegistry, so that
+ * stylesheets used by several handlers are only compiled once; call
+ * release() when the transformer is no longer used. Documents that
+ * the stylesheets load with document() are kept in the DocumentCache.
  */
 public class XSLTTransformer {
+    /** The merged result, indented (the default) */
+    public static final String OUTPUT_FULL = "full";
+    /** The merged result, without indentation */
+    public static final String OUTPUT_COMPACT = "compact";
+    /** Only the status and the numbers of failed asserts and successful reports */
+    public static final String OUTPUT_SUMMARY = "summary";
+    /** The summary, plus the failed-assert elements */
+    public static final String OUTPUT_FAILURES = "failures";
+
+    // Looking up the implementation is slow, so the factory is created
+    // once; it is not changed after this, so threads can share it
+    private static final DocumentBuilderFactory _documentBuilderFactory = newDocumentBuilderFactory();
+
     net.sf.saxon.s9api.Processor processor;
     net.sf.saxon.s9api.SchemaManager schemaManager;
 
-    ArrayList<Transformer> transformers;
+    ArrayList<Templates> transformers;
     //Transformer transformer;
+    private ArrayList<String> _xsltFileNames;
+
+    // How source documents are parsed
+    private net.sf.saxon.om.TreeModel _treeModel = net.sf.saxon.om.TreeModel.TINY_TREE;
+    private boolean _lineNumbering = true;
 
     /**
      * Initializer
@@ -70,30 +98,27 @@ public class XSLTTransformer {
      * @param xsltFileName The xslt file to use with the transformation
      */
     public XSLTTransformer(Collection<String> xsltFileNames) {
-        processor = new net.sf.saxon.s9api.Processor(false);
+        processor = ArtifactRegistry.getShared().getProcessor();
         schemaManager = processor.getSchemaManager();
-        transformers = new ArrayList<Transformer>();
+        transformers = new ArrayList<Templates>();
+        _xsltFileNames = new ArrayList<String>(xsltFileNames);
         for (String fname : xsltFileNames) {
             transformers.add(setupTransformer(fname));
         }
     }
 
+    private static DocumentBuilderFactory newDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setIgnoringElementContentWhitespace(true);
+        return factory;
+    }
+
     /**
      * Initialize the Saxon Transformer
      */
-    private Transformer setupTransformer(String xsltFileName) {
-        TransformerFactory transformFactory = TransformerFactory.newInstance();
-        TransformerFactoryImpl transformFactoryImpl = (TransformerFactoryImpl) transformFactory;
-        net.sf.saxon.Configuration saxonConfig = transformFactoryImpl.getConfiguration();
-        saxonConfig.setLineNumbering(true);
-        saxonConfig.setRecoveryPolicy(Configuration.RECOVER_SILENTLY);
-        saxonConfig.registerExtensionFunction(new LineNumbers());
-        transformFactoryImpl.setConfiguration(saxonConfig);
-
+    private Templates setupTransformer(String xsltFileName) {
         try {
-            Transformer transformer =
-            transformFactory.newTransformer(new StreamSource(new File(xsltFileName)));
-            return transformer;
+            return ArtifactRegistry.getShared().acquireStylesheet(xsltFileName);
         } catch (Exception e) {
             // TODO better handling
             System.exit(1);
@@ -102,98 +127,241 @@ public class XSLTTransformer {
     }
 
     /**
-     * Transform an xml document represented as a String
+     * Set how source documents are parsed
      *
-     * @param in String containing the full xml document
-     * @return The transformation result
-     * @throws TransformerException if the transformation fails
+     * Without line numbering, the trees are smaller and are built
+     * faster, but the linenumbers() extension function returns -1.
+     *
+     * @param treeModel The Saxon tree model to build, see treeModelFor()
+     * @param lineNumbering Whether to keep the line numbers of the nodes
      */
-    public String transformString(String in) throws TransformerException, SAXException, IOException, ParserConfigurationException {
-        // Perform all transformations, then combine the results
-        Document result = null;
-        for (Transformer t : transformers) {
-            StringReader reader = new StringReader(in);
-            StreamSource source = new StreamSource(reader);
-            if (result == null) {
-                result = transformOne(t, source);
-            } else {
-                mergeResults(result, transformOne(t, source));
-            }
+    public void setTreeOptions(net.sf.saxon.om.TreeModel treeModel, boolean lineNumbering) {
+        _treeModel = treeModel;
+        _lineNumbering = lineNumbering;
+    }
+
+    /**
+     * Return the tree model with the given name, or null if there is
+     * no such tree model
+     *
+     * tiny: the default Saxon tree
+     * condensed: a tiny tree that stores identical text and attribute
+     *            values only once; it takes longer to build, but uses
+     *            less memory for documents with many repeated values
+     * linked: a tree of node objects; larger, but faster to navigate
+     *         for some stylesheets
+     */
+    public static net.sf.saxon.om.TreeModel treeModelFor(String name) {
+        if ("tiny".equals(name)) {
+            return net.sf.saxon.om.TreeModel.TINY_TREE;
+        } else if ("condensed".equals(name)) {
+            return net.sf.saxon.om.TreeModel.TINY_TREE_CONDENSED;
+        } else if ("linked".equals(name)) {
+            return net.sf.saxon.om.TreeModel.LINKED_TREE;
         }
-        return documentToString(result);
+        return null;
     }
 
     /**
-     * Transform an xml document read from a stream
+     * Release the compiled stylesheets, the transformer must not be
+     * used anymore after this
+     */
+    public void release() {
+        for (Templates t : transformers) {
+            ArtifactRegistry.getShared().release(t);
+        }
+    }
+
+    public static boolean isOutputMode(String mode) {
+        return OUTPUT_FULL.equals(mode) || OUTPUT_COMPACT.equals(mode) ||
+               OUTPUT_SUMMARY.equals(mode) || OUTPUT_FAILURES.equals(mode);
+    }
+
+    /**
+     * Transform a document that has already been parsed into a tree
+     * (see newTreeBuilder()), and write the result in the given output
+     * mode to the given stream (encoded as UTF-8)
+     *
+     * In the summary modes, the stylesheet outputs are only scanned
+     * for SVRL failed-assert and successful-report elements, the
+     * merged result document is never built. The output is then:
+     *
+     * <XTSTSummary status="passed|failed" failedAsserts="N" successfulReports="N"/>
      *
-     * @param in DataInputStream to read the xml document from
-     * @return The transformation result
+     * where in failures mode, the element contains copies of the
+     * failed-assert elements.
+     *
+     * @param tree The document tree to transform
+     * @param out The stream to write the transformation result to
+     * @param mode One of the OUTPUT_ constants
      * @throws TransformerException if the transformation fails
      */
-/*
-    public String transformStream(DataInputStream in) throws TransformerException, SAXException, IOException, ParserConfigurationException {
-        StreamSource source = new StreamSource(in);
-        return transformAll(source);
+    public void transformTree(Source tree, OutputStream out, String mode) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+        transformTree(tree, out, mode, null);
     }
-*/
+
     /**
-     * Transform an xml document contained in a file
+     * Transform a document that has already been parsed into a tree,
+     * and count the processor time and memory used by every stylesheet,
+     * the merging of their outputs and the serialization of the result
      *
-     * @param in Filename of the file containing the full xml document
-     * @return The transformation result
+     * @param tree The document tree to transform
+     * @param out The stream to write the transformation result to
+     * @param mode One of the OUTPUT_ constants
+     * @param cost The cost of the request, or null
      * @throws TransformerException if the transformation fails
      */
-      public String transformFile(String xmlFileName) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+    public void transformTree(Source tree, OutputStream out, String mode, RequestCost cost) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+        Document result;
+        if (OUTPUT_SUMMARY.equals(mode) || OUTPUT_FAILURES.equals(mode)) {
+            result = summarize(tree, OUTPUT_FAILURES.equals(mode), cost);
+        } else {
+            result = transformAll(tree, cost);
+        }
+        try {
+            writeDocument(result, out, !OUTPUT_COMPACT.equals(mode));
+        } finally {
+            if (cost != null) {
+                cost.mark("serialize");
+            }
+        }
+    }
+
+    private Document summarize(Source tree, boolean withFailures, RequestCost cost) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+        Document summary = _documentBuilderFactory.newDocumentBuilder().newDocument();
+        Element root = summary.createElement("XTSTSummary");
+        summary.appendChild(root);
+
+        SummaryHandler handler = new SummaryHandler(ArtifactRegistry.getShared().getTransformerFactory(), withFailures ? root : null);
+        for (int i = 0; i < transformers.size(); i++) {
+            try {
+                newTransformer(transformers.get(i)).transform(tree, new SAXResult(handler));
+            } finally {
+                // Also when the stylesheet fails, so that its cost counts
+                if (cost != null) {
+                    cost.mark("transform:" + _xsltFileNames.get(i));
+                }
+            }
+        }
+        root.setAttribute("status", handler.getFailedAsserts() == 0 ? "passed" : "failed");
+        root.setAttribute("failedAsserts", Integer.toString(handler.getFailedAsserts()));
+        root.setAttribute("successfulReports", Integer.toString(handler.getSuccessfulReports()));
+        return summary;
+    }
+
+    private Document transformAll(Source tree, RequestCost cost) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+        // The document has been parsed once, perform all
+        // transformations on the same tree, and combine the results
         Document result = null;
-        for (Transformer t : transformers) {
-            StreamSource source = new StreamSource(new File(xmlFileName));
+        for (int i = 0; i < transformers.size(); i++) {
+            Document output;
+            try {
+                output = transformOne(transformers.get(i), tree);
+            } finally {
+                // Also when the stylesheet fails, so that its cost counts
+                if (cost != null) {
+                    cost.mark("transform:" + _xsltFileNames.get(i));
+                }
+            }
             if (result == null) {
-                result = transformOne(t, source);
+                result = output;
             } else {
-                mergeResults(result, transformOne(t, source));
+                try {
+                    mergeResults(result, output);
+                } finally {
+                    if (cost != null) {
+                        cost.mark("merge");
+                    }
+                }
             }
         }
-        return documentToString(result);
+        return result;
+    }
 
+    /**
+     * Transform a parsed document with every stylesheet, and return
+     * the time spent per template and function, see StylesheetProfiler
+     *
+     * The stylesheets are compiled again, with tracing code, for this
+     * transformation only; the results are discarded.
+     *
+     * @param tree The document tree, see newTreeBuilder()
+     * @return The lines of an XTSTProfile xml element
+     * @throws TransformerException if a stylesheet fails
+     */
+    public ArrayList<String> profile(Source tree) throws TransformerException {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("<XTSTProfile>");
+        for (String fname : _xsltFileNames) {
+            Transformer transformer = newTransformer(ArtifactRegistry.getShared().compileForProfiling(fname));
+            StylesheetProfiler profiler = new StylesheetProfiler();
+            ((net.sf.saxon.jaxp.TransformerImpl) transformer).getUnderlyingController().addTraceListener(profiler);
+            long start = System.nanoTime();
+            transformer.transform(tree, new SAXResult(new org.xml.sax.helpers.DefaultHandler()));
+            lines.addAll(profiler.describe(fname, System.nanoTime() - start));
+        }
+        lines.add("</XTSTProfile>");
+        return lines;
+    }
+
+    private net.sf.saxon.s9api.DocumentBuilder newDocumentBuilder() {
+        net.sf.saxon.s9api.DocumentBuilder builder = processor.newDocumentBuilder();
+        builder.setTreeModel(_treeModel);
+        builder.setLineNumbering(_lineNumbering);
+        return builder;
     }
 
     /**
-     * Transform an xml document represented an xml Source object
+     * Return a SAX content handler that builds a tree which can be
+     * passed to transformTree(); the tree is available from its
+     * getDocumentNode() once the document has been parsed
      *
-     * @param in xml document to transform
-     * @return The transformation result
-     * @throws TransformerException if the transformation fails
+     * @return The tree builder
+     * @throws TransformerException if the builder cannot be created
      */
-    /*
-    public String transform(Source xmlFile) throws TransformerException {
-        StreamResult result = new StreamResult(new StringWriter());
-        transformer.transform(xmlFile, result);
-        String xmlString = result.getWriter().toString();
-        return xmlString;
-    }*/
+    public net.sf.saxon.s9api.BuildingContentHandler newTreeBuilder() throws TransformerException {
+        try {
+            return newDocumentBuilder().newBuildingContentHandler();
+        } catch (net.sf.saxon.s9api.SaxonApiException sae) {
+            throw new TransformerException(sae.getMessage(), sae);
+        }
+    }
 
-    private Document transformOne(Transformer transformer, Source xmlFile) throws TransformerException, SAXException, IOException, ParserConfigurationException {
+    private Document transformOne(Templates templates, Source xmlFile) throws TransformerException, SAXException, IOException, ParserConfigurationException {
         StreamResult result = new StreamResult(new StringWriter());
+        Transformer transformer = newTransformer(templates);
         transformer.transform(xmlFile, result);
         String xmlString = result.getWriter().toString();
 
-        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-        docBuilderFactory.setIgnoringElementContentWhitespace(true);
-        DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+        DocumentBuilder docBuilder = _documentBuilderFactory.newDocumentBuilder();
         Document document = docBuilder.parse(new InputSource(new StringReader(xmlString)));
         return document;
     }
 
-    private String documentToString(Document doc) throws TransformerException, IOException {
-        DOMSource domSource = new DOMSource(doc);
-        StringWriter writer = new StringWriter();
-        StreamResult result = new StreamResult(writer);
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer transformer = tf.newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        transformer.transform(domSource, result);
-        return writer.toString();
+    /**
+     * Create a transformer for a compiled stylesheet, which loads the
+     * documents it reads with document() from the DocumentCache
+     */
+    private Transformer newTransformer(Templates templates) throws TransformerException {
+        Transformer transformer = templates.newTransformer();
+        transformer.setURIResolver(DocumentCache.getShared());
+        return transformer;
+    }
+
+    private void writeDocument(Document doc, OutputStream out, boolean indent) throws TransformerException, IOException {
+        newSerializer(indent).transform(new DOMSource(doc), new StreamResult(out));
+    }
+
+    private Transformer newSerializer(boolean indent) throws TransformerException {
+        Transformer transformer = ArtifactRegistry.getShared().getTransformerFactory().newTransformer();
+        if (indent) {
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        } else {
+            transformer.setOutputProperty(OutputKeys.INDENT, "no");
+        }
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        return transformer;
     }
 
     private void mergeResults(Document target, Document source) {
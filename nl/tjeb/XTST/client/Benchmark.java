@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throughput of a server with XTSTClient
+ *
+ * Sends the same document a number of times, from as many threads as
+ * there are connections, and reports the number of documents per
+ * second and the latency distribution:
+ *
+ * java -cp XTST-client.jar nl.tjeb.XTST.client.Benchmark host port keyword document [connections] [requests] [compression]
+ *
+ * Use - as the keyword for a server that does not run in multimode.
+ * The first tenth of the requests (at least one per connection) warm
+ * up the server and are not counted.
+ */
+public class Benchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("usage: Benchmark host port keyword document [connections] [requests] [compression]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        final String keyword = args[2].equals("-") ? null : args[2];
+        final Path document = Paths.get(args[3]);
+        final int connections = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        int requests = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+        String compression = args.length > 6 ? args[6] : "none";
+
+        final XTSTClient client = new XTSTClient(host, port, connections);
+        client.setCompression(compression);
+        try {
+            run(client, keyword, document, connections, Math.max(requests / 10, connections), null);
+            long[] latencies = new long[requests];
+            long start = System.nanoTime();
+            int failures = run(client, keyword, document, connections, requests, latencies);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Arrays.sort(latencies);
+            double megabytes = (double) requests * Files.size(document) / (1024 * 1024);
+            System.out.println(requests + " requests over " + connections + " connections in " + round(seconds) + " s, " + failures + " failed");
+            System.out.println(round(requests / seconds) + " documents/s, " + round(megabytes / seconds) + " MB/s sent");
+            System.out.println("latency (ms): p50 " + millis(latencies, 0.5) + ", p90 " + millis(latencies, 0.9) +
+                               ", p99 " + millis(latencies, 0.99) + ", max " + millis(latencies, 1.0));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Send the document the given number of times, and return the
+     * number of failures
+     *
+     * @param latencies If not null, the latency (in nanoseconds) of
+     *        every request is stored in it
+     */
+    private static int run(final XTSTClient client, final String keyword, final Path document, int connections, final int requests, final long[] latencies) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    int request;
+                    while ((request = next.getAndIncrement()) < requests) {
+                        long start = System.nanoTime();
+                        try {
+                            XTSTResult result = client.validate(keyword, document);
+                            if (!result.isSuccess()) {
+                                if (failures.getAndIncrement() == 0) {
+                                    System.err.println(result.getStatus());
+                                }
+                            }
+                        } catch (IOException ioe) {
+                            if (failures.getAndIncrement() == 0) {
+                                System.err.println("Error: " + ioe);
+                            }
+                        }
+                        if (latencies != null) {
+                            latencies[request] = System.nanoTime() - start;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return failures.get();
+    }
+
+    private static double millis(long[] sorted, double fraction) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1);
+        return round(sorted[Math.max(index, 0)] / 1e6);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
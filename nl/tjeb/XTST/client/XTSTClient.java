@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Client for the XTST server (protocol 3, see nl.tjeb.XTST.Server)
+ *
+ * One client can be used by any number of threads at the same time.
+ * It keeps a pool of connections to the server, with the keepalive
+ * option set, so that a document does not have to wait for a new
+ * connection; at most maxConnections documents are sent at the same
+ * time, other callers wait for a free connection. The server handles
+ * one command at a time per connection, and closes the connection
+ * after an error, so requests are not pipelined on one connection;
+ * use more connections to send more documents at the same time.
+ *
+ * Documents are streamed to the server from a file or stream, unless
+ * they are compressed, in which case they are compressed in memory
+ * first (the size has to be sent before the document).
+ *
+ * Errors reported by the server (an invalid document, an unknown
+ * keyword, a busy server) are returned as an XTSTResult; only errors
+ * in the connection itself are thrown. The async methods run the
+ * requests on the client's own threads, one per connection.
+ *
+ * Example:
+ *
+ * XTSTClient client = new XTSTClient("localhost", 35791, 8);
+ * XTSTResult result = client.validate("foo", Paths.get("document.xml"));
+ * if (result.isSuccess()) {
+ *     System.out.println(result.getString());
+ * }
+ * client.close();
+ */
+public class XTSTClient implements Closeable {
+    private static final String PROTOCOL_VERSION = "3";
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 5000;
+    // The server closes connections that are idle for 30 seconds,
+    // don't use them that long
+    private static final long POOL_IDLE_MILLISECONDS = 15000;
+    private static final int BUFFER_SIZE = 65536;
+
+    private String _host;
+    private int _port;
+    private Semaphore _permits;
+    private LinkedList<Connection> _idle = new LinkedList<Connection>();
+    private ExecutorService _executor;
+
+    private String _output;
+    private String _compression = "none";
+    // Incremented when the options change, so that connections with
+    // the old options are not reused
+    private int _generation;
+
+    /**
+     * A connection to the server, with the client's options set
+     */
+    private static class Connection {
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        int generation;
+        // The compression option set on this connection
+        String compression;
+        // Whether this connection has been used before
+        boolean reused;
+        long idleSince;
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * A document to send
+     */
+    private interface Body {
+        long length() throws IOException;
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Initializer
+     *
+     * @param host The hostname or IP address of the server
+     * @param port The port number of the server
+     * @param maxConnections The maximum number of connections to the
+     *        server, and so of documents sent at the same time
+     */
+    public XTSTClient(String host, int port, int maxConnections) {
+        _host = host;
+        _port = port;
+        _permits = new Semaphore(maxConnections, true);
+        _executor = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "XTSTClient");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set the form of the results: full (the default), compact, summary
+     * or failures (see the output option of the server)
+     */
+    public synchronized void setOutput(String output) {
+        _output = output;
+        clearIdle();
+    }
+
+    /**
+     * Send the documents, and receive the results, compressed with the
+     * given codec: none (the default), gzip or deflate
+     */
+    public synchronized void setCompression(String codec) {
+        if (!codec.equals("none") && !codec.equals("gzip") && !codec.equals("deflate")) {
+            throw new IllegalArgumentException("unsupported compression: " + codec);
+        }
+        _compression = codec;
+        clearIdle();
+    }
+
+    /**
+     * Validate and transform a document file
+     *
+     * @param keyword The keyword of the handler, or null if the server
+     *        does not run in multimode
+     * @param document The document file
+     * @return The result
+     * @throws IOException if the connection to the server fails
+     */
+    public XTSTResult validate(String keyword, final Path document) throws IOException {
+        return validate(keyword, new Body() {
+            public long length() throws IOException {
+                return Files.size(document);
+            }
+
+            public void writeTo(OutputStream out) throws IOException {
+                Files.copy(document, out);
+            }
+        });
+    }
+
+    /**
+     * Validate and transform a document read from a stream
+     *
+     * @param keyword The keyword of the handler, or null if the server
+     *        does not run in multimode
+     * @param document The stream to read the document from
+     * @param length The number of bytes to read from the stream
+     * @return The result
+     * @throws IOException if reading the document, or the connection to
+     *         the server, fails
+     */
+    public XTSTResult validate(String keyword, final InputStream document, final long length) throws IOException {
+        return validate(keyword, new Body() {
+            public long length() {
+                return length;
+            }
+
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = length;
+                while (remaining > 0) {
+                    int count = document.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                    if (count < 0) {
+                        throw new EOFException("document shorter than " + length + " bytes");
+                    }
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+        });
+    }
+
+    /**
+     * Validate and transform a document
+     *
+     * @param keyword The keyword of the handler, or null if the server
+     *        does not run in multimode
+     * @param document The document
+     * @return The result
+     * @throws IOException if the connection to the server fails
+     */
+    public XTSTResult validate(String keyword, byte[] document) throws IOException {
+        return validate(keyword, new ByteArrayInputStream(document), document.length);
+    }
+
+    /**
+     * Validate and transform a document file on one of the client's
+     * threads
+     *
+     * @return The result; completes exceptionally (with a
+     *         CompletionException) if the connection fails
+     */
+    public CompletableFuture<XTSTResult> validateAsync(final String keyword, final Path document) {
+        return CompletableFuture.supplyAsync(new Supplier<XTSTResult>() {
+            public XTSTResult get() {
+                try {
+                    return validate(keyword, document);
+                } catch (IOException ioe) {
+                    throw new CompletionException(ioe);
+                }
+            }
+        }, _executor);
+    }
+
+    /**
+     * Validate and transform a document on one of the client's threads
+     *
+     * @return The result; completes exceptionally (with a
+     *         CompletionException) if the connection fails
+     */
+    public CompletableFuture<XTSTResult> validateAsync(final String keyword, final byte[] document) {
+        return CompletableFuture.supplyAsync(new Supplier<XTSTResult>() {
+            public XTSTResult get() {
+                try {
+                    return validate(keyword, document);
+                } catch (IOException ioe) {
+                    throw new CompletionException(ioe);
+                }
+            }
+        }, _executor);
+    }
+
+    /**
+     * Validate and transform a batch of document files with the same
+     * handler, sending as many at the same time as there are
+     * connections
+     *
+     * @return The results, in the order of the documents; use
+     *         CompletableFuture.allOf() to wait for all of them
+     */
+    public List<CompletableFuture<XTSTResult>> validateAll(String keyword, List<Path> documents) {
+        ArrayList<CompletableFuture<XTSTResult>> results = new ArrayList<CompletableFuture<XTSTResult>>();
+        for (Path document : documents) {
+            results.add(validateAsync(keyword, document));
+        }
+        return results;
+    }
+
+    /**
+     * Close the idle connections and stop the client's threads; the
+     * client must not be used anymore after this
+     */
+    public void close() {
+        _executor.shutdown();
+        synchronized (this) {
+            clearIdle();
+        }
+    }
+
+    private XTSTResult validate(String keyword, Body document) throws IOException {
+        try {
+            _permits.acquire();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("interrupted while waiting for a connection");
+        }
+        try {
+            String command = keyword == null ? "validate" : "validate " + keyword;
+            // The document, the result and the connection must all use
+            // the same codec, even if it is changed in the meantime
+            String codec;
+            synchronized (this) {
+                codec = _compression;
+            }
+            Body body = compress(document, codec);
+            long length = body.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("document too large (" + length + " bytes)");
+            }
+            Connection connection = null;
+            String status = null;
+            // A pooled connection may have been closed by the server;
+            // in that case, try once more on a new connection
+            for (int attempt = 0; status == null; attempt++) {
+                connection = take(codec);
+                try {
+                    sendString(command, connection.out);
+                    connection.out.flush();
+                    status = readString(connection.in);
+                } catch (IOException ioe) {
+                    connection.close();
+                    if (!connection.reused || attempt > 0) {
+                        throw ioe;
+                    }
+                    synchronized (this) {
+                        clearIdle();
+                    }
+                }
+            }
+            if (!status.startsWith("Success")) {
+                connection.close();
+                return new XTSTResult(status, null);
+            }
+
+            try {
+                connection.out.writeInt((int) length);
+                body.writeTo(connection.out);
+                connection.out.flush();
+
+                status = readString(connection.in);
+                if (!status.startsWith("Success")) {
+                    connection.close();
+                    return new XTSTResult(status, null);
+                }
+                byte[] data = readBytes(connection.in);
+                giveBack(connection);
+                return new XTSTResult(status, decompress(data, codec));
+            } catch (IOException ioe) {
+                connection.close();
+                throw ioe;
+            }
+        } finally {
+            _permits.release();
+        }
+    }
+
+    /**
+     * Return the document compressed with the given codec; since its
+     * size must be known, it is compressed in memory
+     */
+    private Body compress(Body document, String codec) throws IOException {
+        if (codec.equals("none")) {
+            return document;
+        }
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = codec.equals("gzip") ? new GZIPOutputStream(compressed, BUFFER_SIZE)
+                                                : new DeflaterOutputStream(compressed);
+        document.writeTo(out);
+        out.close();
+        return new Body() {
+            public long length() {
+                return compressed.size();
+            }
+
+            public void writeTo(OutputStream out) throws IOException {
+                compressed.writeTo(out);
+            }
+        };
+    }
+
+    private byte[] decompress(byte[] data, String codec) throws IOException {
+        if (codec.equals("none")) {
+            return data;
+        }
+        InputStream in = codec.equals("gzip") ? new GZIPInputStream(new ByteArrayInputStream(data), BUFFER_SIZE)
+                                              : new InflaterInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream result = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            result.write(buffer, 0, count);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Return an idle connection from the pool, or a new one, with the
+     * given compression option
+     */
+    private Connection take(String compression) throws IOException {
+        int generation;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (!_idle.isEmpty()) {
+                Connection connection = _idle.removeFirst();
+                // A connection with another codec can only be left
+                // over from a change of the compression option
+                if (now - connection.idleSince < POOL_IDLE_MILLISECONDS &&
+                    connection.compression.equals(compression)) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+            generation = _generation;
+        }
+        return connect(generation, compression);
+    }
+
+    /**
+     * Put a connection back in the pool, if it still has the current
+     * options
+     */
+    private synchronized void giveBack(Connection connection) {
+        if (connection.generation == _generation && !_executor.isShutdown()) {
+            connection.idleSince = System.currentTimeMillis();
+            _idle.addFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close all idle connections, call with the lock held
+     */
+    private void clearIdle() {
+        _generation++;
+        for (Connection connection : _idle) {
+            connection.close();
+        }
+        _idle.clear();
+    }
+
+    private Connection connect(int generation, String compression) throws IOException {
+        String output;
+        synchronized (this) {
+            output = _output;
+        }
+        Connection connection = new Connection();
+        connection.generation = generation;
+        connection.compression = compression;
+        connection.socket = new Socket();
+        try {
+            connection.socket.connect(new InetSocketAddress(_host, _port), CONNECT_TIMEOUT_MILLISECONDS);
+            connection.socket.setSoTimeout(CONNECT_TIMEOUT_MILLISECONDS);
+            connection.socket.setTcpNoDelay(true);
+            connection.in = new DataInputStream(new BufferedInputStream(connection.socket.getInputStream(), BUFFER_SIZE));
+            connection.out = new DataOutputStream(new BufferedOutputStream(connection.socket.getOutputStream(), BUFFER_SIZE));
+            String banner = readString(connection.in);
+            if (!banner.contains("protocol version: " + PROTOCOL_VERSION)) {
+                throw new IOException("unsupported protocol: " + banner.trim());
+            }
+            // Send all options at once, then read their statuses
+            ArrayList<String> options = new ArrayList<String>();
+            options.add("set keepalive on");
+            if (output != null) {
+                options.add("set output " + output);
+            }
+            if (!compression.equals("none")) {
+                options.add("set compression " + compression);
+            }
+            for (String option : options) {
+                sendString(option, connection.out);
+            }
+            connection.out.flush();
+            for (String option : options) {
+                String status = readString(connection.in);
+                if (!status.startsWith("Success")) {
+                    throw new IOException(option + ": " + status);
+                }
+            }
+            // Transformations may take any amount of time
+            connection.socket.setSoTimeout(0);
+        } catch (IOException ioe) {
+            connection.close();
+            throw ioe;
+        }
+        return connection;
+    }
+
+    private static void sendString(String data, DataOutputStream out) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("bad message size " + size);
+        }
+        byte[] data = new byte[size];
+        in.readFully(data);
+        return data;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Jelte Jansen
+ *
+ * This file is part of the XSLT Transformation Server Tool (XTST).
+ *
+ * XTST is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XTST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with XTST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.tjeb.XTST.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The answer of the server to one document: the status, and on success
+ * the transformation result (decompressed, encoded as UTF-8)
+ */
+public class XTSTResult {
+    private String _status;
+    private byte[] _data;
+
+    XTSTResult(String status, byte[] data) {
+        _status = status.trim();
+        _data = data;
+    }
+
+    /**
+     * Return true if the document was transformed
+     */
+    public boolean isSuccess() {
+        return _status.startsWith("Success");
+    }
+
+    /**
+     * Return true if the server rejected the document because it was
+     * too busy, so that it may succeed when it is sent again later
+     */
+    public boolean isRetryable() {
+        return !isSuccess() && _status.contains("retry");
+    }
+
+    /**
+     * Return the status sent by the server, either
+     * 'Success: <message>' or 'Error: <message>'
+     */
+    public String getStatus() {
+        return _status;
+    }
+
+    /**
+     * Return the transformation result, or null if the document was not
+     * transformed
+     */
+    public byte[] getData() {
+        return _data;
+    }
+
+    /**
+     * Return the transformation result as a string, or null if the
+     * document was not transformed
+     */
+    public String getString() {
+        return _data == null ? null : new String(_data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the transformation result to the given stream
+     *
+     * @throws IOException if writing fails, or if there is no result
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (_data == null) {
+            throw new IOException("no result: " + _status);
+        }
+        out.write(_data);
+    }
+
+    public String toString() {
+        return _status + (_data != null ? " (" + _data.length + " bytes)" : "");
+    }
+}
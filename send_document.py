@@ -19,9 +19,11 @@
 #
 
 import argparse
+import gzip
 import socket
 import struct
 import sys
+import zlib
 
 #
 # Example client code
@@ -35,10 +37,27 @@ PROTOCOL_VERSION = 3
 
 def send_data_string(s, data):
     bts = data.encode("UTF-8")
+    send_data_bytes(s, bts)
+
+def send_data_bytes(s, bts):
     l_bts = struct.pack(">I", len(bts))
     s.send(l_bts)
     s.send(bts)
 
+def compress(data, compression):
+    if compression == "gzip":
+        return gzip.compress(data)
+    elif compression == "deflate":
+        return zlib.compress(data)
+    return data
+
+def decompress(data, compression):
+    if compression == "gzip":
+        return gzip.decompress(data)
+    elif compression == "deflate":
+        return zlib.decompress(data)
+    return data
+
 def read_data(s, size):
     result = bytes()
     while len(result) < size:
@@ -78,10 +97,18 @@ def send_command(command, host, port):
       print(response)
       response = read_data_string(s)
 
-def send_document(filename, host, port, outputfile, keyword):
-    with open(filename) as inf:
-        lines = inf.readlines()
-        xml = "".join(lines)
+def set_option(s, option, value):
+    send_data_string(s, "set %s %s" % (option, value))
+    status = read_data_string(s)
+    if not status.startswith("Success:"):
+        print(status)
+        exit(1)
+
+def send_document(filename, host, port, outputfile, keyword, compression=None, mode=None):
+    # The document is sent as is; the server honours the encoding in
+    # its xml declaration
+    with open(filename, 'rb') as inf:
+        xml = inf.read()
 
         s = socket.socket(
             socket.AF_INET, socket.SOCK_STREAM)
@@ -89,22 +116,26 @@ def send_document(filename, host, port, outputfile, keyword):
 
         version_string = read_data_string(s)
         protocol_version = check_protocol_version(version_string)
+        if compression:
+            set_option(s, "compression", compression)
+        if mode:
+            set_option(s, "output", mode)
         if not keyword:
             send_data_string(s, "validate")
         else:
             send_data_string(s, "validate %s" % keyword)
         status = read_data_string(s)
         if (status.startswith("Success: ")):
-            send_data_string(s, xml);
+            send_data_bytes(s, compress(xml, compression))
 
             status = read_data_string(s)
         if status.startswith("Success:"):
-            result = read_data_string(s, True)
+            result = decompress(read_data_string(s, False), compression)
             if not outputfile:
-                print(result)
+                print(result.decode("UTF-8"))
             else:
-                with open(outputfile, 'w') as outf:
-                    outf.write(result.encode("UTF-8"))
+                with open(outputfile, 'wb') as outf:
+                    outf.write(result)
         else:
             print(status)
 
@@ -118,6 +149,10 @@ if __name__ == "__main__":
                             help='save returned document to file')
     arg_parser.add_argument('-k', '--keyword', type=str,
                             help='use keyword to select handler in multimode')
+    arg_parser.add_argument('-z', '--compression', choices=['gzip', 'deflate'],
+                            help='compress the document and the result')
+    arg_parser.add_argument('-m', '--mode', choices=['full', 'compact', 'summary', 'failures'],
+                            help='the form of the returned document')
     arg_parser.add_argument('-c', '--command', action='store_true',
                             help='send an arbitrary command to the server (instead of a document)')
     arg_parser.add_argument('document_or_command',
@@ -128,4 +163,4 @@ if __name__ == "__main__":
     if args.command:
         send_command(args.document_or_command, args.address, args.port)
     else:
-        send_document(args.document_or_command, args.address, args.port, args.outputfile, args.keyword)
+        send_document(args.document_or_command, args.address, args.port, args.outputfile, args.keyword, args.compression, args.mode)